@@ -0,0 +1,41 @@
+(ns bench
+  "Rough micro benchmarks for `conceptual.int-sets`. Start the REPL with and
+  without `-Dconceptual.vector=false` to compare the vector and scalar paths."
+  (:require
+   [conceptual.int-sets :as i]
+   [conceptual.timing :as timing])
+  (:import
+   (conceptual.util IntArrayList)))
+
+(defn random-set
+  "Returns a sorted int set of about `n` ints drawn from `[0, universe)`."
+  ^int/1 [n universe]
+  (i/set (repeatedly n #(rand-int universe))))
+
+(defn int-sets
+  "Times the pairwise set ops on `a` and `b`, averaged over `n` runs."
+  ([] (int-sets 1000 (random-set 1000 1000000) (random-set 100000 1000000)))
+  ([n ^int/1 a ^int/1 b]
+   {:vectorized? (i/vectorized?)
+    :sizes [(alength a) (alength b)]
+    :intersection (timing/ntimes n (i/intersection a b))
+    :intersection-count (timing/ntimes n (i/intersection-count a b))
+    :difference (timing/ntimes n (i/difference a b))
+    :union (timing/ntimes n (i/union a b))}))
+
+(comment
+  (int-sets)
+  ;; similar sizes, interleaved
+  (int-sets 1000 (random-set 100000 1000000) (random-set 100000 1000000)))
+
+(defn k-way-union
+  "Times `i/union` of `k` sets of `m` ints drawn from `[0, universe)` against
+  concatenating and sorting them."
+  ([] (k-way-union 100 32 10000 1000000))
+  ([n k m universe]
+   (let [sets (vec (repeatedly k #(random-set m universe)))]
+     {:k k
+      :union (timing/ntimes n (apply i/union sets))
+      :concat-and-sort (timing/ntimes n (let [l (IntArrayList.)]
+                                          (doseq [s sets] (.addAll l ^int/1 s))
+                                          (.toSortedIntSet l)))})))
@@ -3,18 +3,35 @@
   (:require
    [conceptual.core :as c :refer [*db*]])
   (:import
-   (conceptual.alpha FacetsAlpha)))
+   (conceptual.alpha FacetsAlpha QueryBudget)))
+
+(defn- partial?
+  "`:on-exceeded` is either `:abort`, the default, throwing once the `budget` is
+  exceeded or `:partial` returning the counts of the ids seen so far, check
+  `(.isExceeded budget)` to tell whether they are complete."
+  [{:keys [on-exceeded] :or {on-exceeded :abort}}]
+  (case on-exceeded
+    :abort false
+    :partial true))
 
 (defn to-many-relations-by-frequency
-  "An implementation that does not use an `IntArrayPool`."
+  "An implementation that does not use an `IntArrayPool`. `opts` may have a
+  `:budget`, see `conceptual.alpha.filter/new-budget`, and `:on-exceeded`."
   (^int/1 [relation-key min-id max-id ids]
    (to-many-relations-by-frequency @*db* relation-key min-id max-id ids))
   (^int/1 [db relation-key min-id max-id ids]
-   (FacetsAlpha/getToManyRelationsByFrequency db ids relation-key min-id max-id)))
+   (FacetsAlpha/getToManyRelationsByFrequency db ids relation-key min-id max-id))
+  (^int/1 [db relation-key min-id max-id ids {:keys [budget] :as opts}]
+   (FacetsAlpha/getToManyRelationsByFrequency db ids relation-key min-id max-id
+                                              ^QueryBudget budget (partial? opts))))
 
 (defn to-one-relations-by-frequency
-  "An implementation that does not use an `IntArrayPool`."
+  "An implementation that does not use an `IntArrayPool`. `opts` may have a
+  `:budget`, see `conceptual.alpha.filter/new-budget`, and `:on-exceeded`."
   (^int/1 [relation-key min-id max-id ids]
    (to-one-relations-by-frequency @*db* relation-key min-id max-id ids))
   (^int/1 [db relation-key min-id max-id ids]
-   (FacetsAlpha/getToOneRelationsByFrequency db ids relation-key min-id max-id)))
+   (FacetsAlpha/getToOneRelationsByFrequency db ids relation-key min-id max-id))
+  (^int/1 [db relation-key min-id max-id ids {:keys [budget] :as opts}]
+   (FacetsAlpha/getToOneRelationsByFrequency db ids relation-key min-id max-id
+                                             ^QueryBudget budget (partial? opts))))
@@ -1,10 +1,17 @@
 (ns conceptual.alpha.filter
+  (:refer-clojure :exclude [compile count])
   (:require
    [clojure.spec.alpha :as s]
    [clojure.set :as set]
    [conceptual.core :as c]
    [conceptual.int-sets :as i])
-  (:import (conceptual.util IntArrayList)))
+  (:import (clojure.lang ExceptionInfo)
+           (conceptual.alpha FieldFilter QueryBudget SemiJoin)
+           (conceptual.util ForkJoinPools IntArrayList IntCursor LruCache)
+           (java.lang.ref WeakReference)
+           (java.util Arrays)
+           (java.util.concurrent Callable ForkJoinPool ForkJoinTask)
+           (java.util.concurrent.atomic AtomicLong)))
 
 (set! *warn-on-reflection* true)
 
@@ -44,6 +51,13 @@
   [enabled?]
   (alter-var-root #'*enable-index-scan* (constantly enabled?)))
 
+;; reorder `and` clauses by estimated cardinality, see `plan`
+(def ^:dynamic *enable-planner* true)
+
+(defn enable-planner!
+  [enabled?]
+  (alter-var-root #'*enable-planner* (constantly enabled?)))
+
 (def ^:no-doc ^:private +comparison-operators+
   '#{= > >= < <= not=})
 
@@ -68,6 +82,12 @@
 
 (s/def ::field qualified-symbol?)
 
+;; relations followed by a field, eg. `[imdb/directors imdb.person/birth-year]`
+(s/def ::path (s/coll-of qualified-symbol? :kind vector? :min-count 2))
+
+(s/def ::op-field (s/nonconforming (s/or :field ::field
+                                         :path ::path)))
+
 (def ^:no-doc ^:private +scalar-types+
   #{:type/string :type/keyword :type/boolean :type/number})
 
@@ -84,13 +104,13 @@
 
 (s/def ::op-field-val-form
   (s/and list? (s/cat :filter/op ::op
-                      :filter/field ::field
+                      :filter/field ::op-field
                       :filter/value ::value)))
 
 (s/def ::op-val-field-form
   (s/and list? (s/cat :filter/op ::op
                       :filter/value ::value
-                      :filter/field ::field)))
+                      :filter/field ::op-field)))
 
 (s/def ::op-val-form
   (s/and list? (s/cat :filter/op ::op
@@ -98,7 +118,7 @@
 
 (s/def ::op-field-form
   (s/and list? (s/cat :filter/op ::op
-                      :filter/field ::field)))
+                      :filter/field ::op-field)))
 
 (s/def ::op-form
   (s/and list? (s/cat :filter/op ::op)))
@@ -193,21 +213,96 @@
           (recur ids))))))
 
 
+(def ^:private intersects? (comp not-empty set/intersection))
+
+(def ^:no-doc ^:private +op->pred+
+  (assoc +comparison-operator->fn+
+         'contains? contains?
+         'subset? set/subset?
+         'superset? set/superset?
+         'intersects? intersects?))
+
+(def ^:no-doc ^:private +comparison-fn->code+
+  {= FieldFilter/EQ
+   not= FieldFilter/NOT_EQ
+   < FieldFilter/LT
+   <= FieldFilter/LTE
+   > FieldFilter/GT
+   >= FieldFilter/GTE})
+
+;; `(< 3 field)` is `(> field 3)`
+(def ^:no-doc ^:private +flipped-comparison+
+  {FieldFilter/EQ FieldFilter/EQ
+   FieldFilter/NOT_EQ FieldFilter/NOT_EQ
+   FieldFilter/LT FieldFilter/GT
+   FieldFilter/LTE FieldFilter/GTE
+   FieldFilter/GT FieldFilter/LT
+   FieldFilter/GTE FieldFilter/LTE})
+
+(defn- field-filter
+  "Returns a `FieldFilter` selecting the same ids as `(filter-ids pred filter-info ids)`
+  or `nil` when `pred` isn't one of the built-in ops or the field is unknown."
+  ^FieldFilter [pred {field :filter/field [_val-type v] :filter/value sexp-type :filter/sexp-type}]
+  (when-let [k (some-> field keyword c/key->id)]
+    (let [field (keyword field)
+          k (int k)
+          flip? (= :sexp/op-val-field sexp-type)]
+      (if-some [op (+comparison-fn->code+ pred)]
+        (FieldFilter/compare field k (int (cond-> op flip? +flipped-comparison+)) v)
+        (condp identical? pred
+          contains? (if flip?
+                      (when (set? v) (FieldFilter/memberOf field k v))
+                      (FieldFilter/contains field k v))
+          set/subset? (when (set? v)
+                        (FieldFilter/setRelation field k (if flip? FieldFilter/SUPERSET FieldFilter/SUBSET) v))
+          set/superset? (when (set? v)
+                          (FieldFilter/setRelation field k (if flip? FieldFilter/SUBSET FieldFilter/SUPERSET) v))
+          intersects? (when (set? v)
+                        (FieldFilter/setRelation field k FieldFilter/INTERSECTS v))
+          nil)))))
+
+(defn- fn-filter
+  "Returns a `FieldFilter` calling `pred` the way `filter-ids` does."
+  ^FieldFilter [pred
+                {field :filter/field [_val-type the-value] :filter/value sexp-type :filter/sexp-type
+                 :keys [field-xform]
+                 :or {field-xform identity}}]
+  (when-let [k (some-> field keyword c/key->id)]
+    (FieldFilter/of (keyword field) (int k)
+                    (case sexp-type
+                      :sexp/op-field-val (fn [found] (pred (field-xform found) the-value))
+                      :sexp/op-val-field (fn [found] (pred the-value (field-xform found)))))))
+
 (defn- index-scan-filter
   "`init-ids` is the starting sorted int set, could be nil.
   NB negations ie not= only operate on concepts that have the field
-  for performance reasons."
-  [{::keys [anding?] :as _ctx}
+  for performance reasons.
+
+  Scans are split across `(::parallelism ctx)` threads, at most the available
+  processors, when that is more than 1, the default, and there are enough ids, see `FieldFilter/MIN_CHUNK_SIZE`."
+  [{::keys [anding? parallelism budget] :or {parallelism 1} :as _ctx}
    pred
-   {field :filter/field :as filter-info}
+   {field :filter/field [_op-type op] :filter/op :as filter-info}
    init-ids]
   (when-not *enable-index-scan*
     (throw (ex-info "Index scan not enabled." {::error ::index-scan-disabled
                                                :field field})))
   ;; looks up all concept ids that have said field
   (let [ids (cond-> (c/ids (keyword field))
-              anding? (i/intersection init-ids))]
-    (filter-ids pred filter-info ids)))
+              anding? (i/intersection* init-ids))
+        db (c/db)
+        ;; prefer the filter compiled with the expression, see `compile`
+        scan (let [^FieldFilter compiled (::scan filter-info)]
+               (if (and compiled
+                        (identical? pred (+op->pred+ op))
+                        (.isValidFor compiled db))
+                 compiled
+                 (or (field-filter pred filter-info)
+                     (fn-filter pred filter-info))))]
+    (if scan
+      (.scan ^FieldFilter scan db (i/->int-array ids) (int parallelism) ^QueryBudget budget)
+      ;; unknown field
+      (filter-ids pred filter-info ids))))
 
 
 (defn- collection?
@@ -280,7 +375,7 @@
 
 (defn intersection-reducer
   [ctx filter-info ids]
-  (set-op-reducer ctx (comp not-empty set/intersection) filter-info ids))
+  (set-op-reducer ctx intersects? filter-info ids))
 
 (defn comparison-reducer
   [ctx
@@ -309,7 +404,7 @@
                                                                         :field field})))
   (let [tagged-ids (c/ids (keyword field))
         the-value (if (= '= op) the-value (not the-value))
-        set-op (if the-value i/intersection i/difference)]
+        set-op (if the-value i/intersection* i/difference*)]
     (if (or anding? (nil? anding?)) ;; anding? is nil for lone sexp
       (set-op ids tagged-ids)
       tagged-ids)))
@@ -322,7 +417,7 @@
     (throw (ex-info "value not allowed for exists? " {::error ::unexpected-value
                                                       :op 'exists?
                                                       :field field})))
-  (i/intersection ids (c/ids (keyword field))))
+  (i/intersection* ids (c/ids (keyword field))))
 
 (def ^:no-doc ^:private +set-op->reducer-fn+
   {'contains? contains?-reducer
@@ -350,56 +445,541 @@
 
 
 
-(defmulti ^:no-doc ^:private evaluate-sexp (fn [_ctx conformed-sexp _ids] (first conformed-sexp)))
+;; Sub-expressions which only look up `:db/ids`, ie fields, `exists?` and tag
+;; comparisons, along with and/or/not combinations of them, are evaluated as a
+;; streaming merge of `IntCursor`s over the posting lists so that only the
+;; result of the whole sub-expression is materialized.
 
-(defmethod evaluate-sexp :sexp/op
-  [ctx [_ [op-sexp-type filter-info]] ids]
-  (let [filter-info (assoc filter-info :filter/sexp-type op-sexp-type)]
-    ((lookup-reducer ctx filter-info) ctx filter-info ids)))
-
-(defmethod evaluate-sexp :sexp/field
+(defn- registered-reducer
+  [ctx {[_op-type op] :filter/op field :filter/field}]
+  (let [registry (or (::registry ctx) (get-registry))]
+    (or (get-in registry [:conceptual.filter/reducers [op field]])
+        (get-in registry [:conceptual.filter/reducers field]))))
+
+(defn- posting
+  "Returns `[ids negate?]` when the leaf `conformed-sexp` selects the concepts in (or
+  when `negate?` not in) the `:db/ids` of a field, otherwise `nil`."
+  [ctx [sexp-type x]]
+  (case sexp-type
+    :sexp/field [(c/stored-ids (keyword x)) false]
+    :sexp/op (let [[_ {[op-type op] :filter/op field :filter/field [val-type v] :filter/value :as info}] x]
+               (when-not (or (vector? field) (registered-reducer ctx info))
+                 (cond
+                   (and (= :op/set op-type) (= 'exists? op) (nil? v))
+                   [(c/stored-ids (keyword field)) false]
+
+                   (and (= :op/comparison op-type) (#{'= 'not=} op) (= :type/boolean val-type)
+                        (-> field keyword c/seek :db/tag?))
+                   [(c/stored-ids (keyword field)) (not (if (= '= op) v (not v)))])))
+    nil))
+
+(defn- streamable?
+  [ctx [sexp-type x :as conformed-sexp]]
+  (case sexp-type
+    (:sexp/field :sexp/op) (some? (posting ctx conformed-sexp))
+    :sexp/not (streamable? ctx (:single/sexp x))
+    :sexp/logical (every? (partial streamable? ctx) (:list/sexp x))
+    false))
+
+(defn- opaque?
+  "True when `conformed-sexp` calls a custom op or registered reducer, these are
+  always evaluated as they may not be confined to the ids they are given."
+  [ctx [sexp-type x :as conformed-sexp]]
+  (case sexp-type
+    :sexp/op (let [[_ {[op-type] :filter/op :as info}] x]
+               (or (= :op/custom op-type)
+                   (some? (registered-reducer ctx info))))
+    :sexp/not (opaque? ctx (:single/sexp x))
+    :sexp/logical (boolean (some (partial opaque? ctx) (:list/sexp x)))
+    false))
+
+(declare sexp-cursor)
+
+(defn- and-cursor
+  "Intersects `ids` with the streamable `sexps`, plain posting lists are merged as is
+  rather than each being restricted to `ids`."
+  ^IntCursor [ctx sexps ids]
+  (->> sexps
+       (map (fn [sexp]
+              (let [[p negate?] (posting ctx sexp)]
+                (if (and p (not negate?))
+                  (i/cursor p)
+                  (sexp-cursor ctx sexp ids)))))
+       (cons (i/cursor ids))
+       ^"[Lconceptual.util.IntCursor;" (into-array IntCursor)
+       IntCursor/and))
+
+(defn- sexp-cursor
+  "Returns an `IntCursor` over the ids in `ids` matching the streamable `conformed-sexp`."
+  ^IntCursor [ctx [sexp-type x :as conformed-sexp] ids]
+  (case sexp-type
+    (:sexp/field :sexp/op)
+    (let [[p negate?] (posting ctx conformed-sexp)]
+      (if negate?
+        (IntCursor/andNot (i/cursor ids) (i/cursor p))
+        (and-cursor ctx [conformed-sexp] ids)))
+
+    :sexp/not
+    (IntCursor/andNot (i/cursor ids) (sexp-cursor ctx (:single/sexp x) ids))
+
+    :sexp/logical
+    (case (:op/boolean x)
+      and (and-cursor ctx (:list/sexp x) ids)
+      or (->> (:list/sexp x)
+              (map #(sexp-cursor ctx % ids))
+              ^"[Lconceptual.util.IntCursor;" (into-array IntCursor)
+              IntCursor/or))))
+
+
+;; Budgets
+
+(defn new-budget
+  "Returns a `QueryBudget` to pass as `::budget` in the `ctx`, and as `:pull/budget` to
+  `pull`, limiting a query to `:timeout-ms` from now, `:max-ids` concept values scanned
+  and `:max-relations` related ids expanded, all optional. Exceeding any aborts the
+  query with an `error-code` of `::deadline-exceeded` or `::budget-exceeded`, the
+  `:resource` is in the ex-data, and `(.cancel budget)` aborts it with `::cancelled`."
+  [{:keys [timeout-ms max-ids max-relations]}]
+  (QueryBudget. (if timeout-ms (* 1000000 (long timeout-ms)) QueryBudget/UNLIMITED)
+                (long (or max-ids QueryBudget/UNLIMITED))
+                (long (or max-relations QueryBudget/UNLIMITED))))
+
+(defn- charge!
+  [{::keys [^QueryBudget budget]} resource n]
+  (when budget
+    (.charge budget (int resource) (long n))))
+
+
+;; Result cache
+
+(def ^:private +default-cache-size+ 256)
+
+(defn new-cache
+  "Returns a cache of filter results to pass as `::cache` in the `ctx`. Results are
+  cached by sub-expression, including the prefixes of `and`s, and the identity of the
+  ids and the db they were evaluated on, so entries miss after any write or when
+  another db is bound to `c/*db*`. Custom ops and registered reducers aren't
+  cached. NB. cached results are shared so the int arrays returned by `evaluate`
+  must not be modified."
+  ([] (new-cache +default-cache-size+))
+  ([capacity]
+   {::entries (LruCache. (int capacity))
+    ::hits (AtomicLong.)
+    ::misses (AtomicLong.)}))
+
+(defn cache-stats
+  [{::keys [^LruCache entries ^AtomicLong hits ^AtomicLong misses]}]
+  (let [hits (.get hits)
+        misses (.get misses)
+        lookups (+ hits misses)]
+    {:hits hits
+     :misses misses
+     :hit-rate (if (pos? lookups) (/ hits (double lookups)) 0.0)
+     :size (.size entries)
+     :capacity (.capacity entries)}))
+
+(defn- sexp-key
+  "Returns a key for `conformed-sexp` which is the same for equivalent expressions
+  differing only in the order or repetition of `and` and `or` clauses."
+  [[sexp-type x]]
+  (case sexp-type
+    :sexp/field x
+    :sexp/op (let [[op-sexp-type filter-info] x]
+               [op-sexp-type (select-keys filter-info [:filter/op :filter/field :filter/value])])
+    :sexp/not ['not (sexp-key (:single/sexp x))]
+    :sexp/logical [(:op/boolean x) (into #{} (map sexp-key) (:list/sexp x))]))
+
+(defn- cached
+  "Returns the cached result of the expression with key `k` on `ids` or caches `(f)`."
+  [{::keys [cache anding?]} k ids f]
+  (let [{::keys [^LruCache entries ^AtomicLong hits ^AtomicLong misses]} cache
+        ;; outside of an `and` index scans aren't restricted to `ids`
+        cache-key [k (System/identityHashCode ids) (boolean anding?)]
+        db (c/db)
+        ;; the db is held weakly so that entries don't keep replaced dbs alive
+        [^WeakReference entry-db entry-ids result] (.get entries cache-key)]
+    (if (and entry-db (identical? db (.get entry-db)) (identical? ids entry-ids))
+      (do (.incrementAndGet hits)
+          result)
+      (let [result (f)]
+        (.incrementAndGet misses)
+        (.put entries cache-key [(WeakReference. db) ids result])
+        result))))
+
+(defmulti ^:no-doc ^:private evaluate-sexp* (fn [_ctx conformed-sexp _ids] (first conformed-sexp)))
+
+(defn- evaluate-sexp
+  [ctx [sexp-type :as conformed-sexp] ids]
+  (when-let [^QueryBudget budget (::budget ctx)]
+    (.check budget))
+  (if (and (::cache ctx)
+           (not= :sexp/field sexp-type)
+           (not (opaque? ctx conformed-sexp)))
+    (cached ctx (sexp-key conformed-sexp) ids #(evaluate-sexp* ctx conformed-sexp ids))
+    (evaluate-sexp* ctx conformed-sexp ids)))
+
+(defn- path-filter
+  "Returns the ids in `ids` related, through the first relation of the path field, to
+  a concept matching the op on the rest of the path. Either the related concepts of
+  `ids` are filtered and mapped back to `ids`, or when the relation has an inverse and
+  fewer concepts have the next field than there are `ids`, all of those are filtered
+  and mapped back through the inverse. Every field of the path but the last must be
+  a relation."
+  [ctx [sexp-type [op-sexp-type {[relation & more :as path] :filter/field :as filter-info}]] ids]
+  (let [db (c/db)
+        ids (i/->int-array ids)
+        relation-id (c/key->id-or-throw db (keyword relation))
+        _ (when-not (c/value db :db/relation? relation-id)
+            (throw (ex-info (format "field `%s` of path %s is not a relation" relation path)
+                            {::error ::field-not-a-relation
+                             :field relation
+                             :path path})))
+        inverse-id (c/value db :db/inverse-relation relation-id)
+        target-sexp [sexp-type [op-sexp-type (-> filter-info
+                                                  (dissoc ::scan)
+                                                  (assoc :filter/field (if (next more) (vec more) (first more))))]]
+        population (c/ids db (keyword (first more)))
+        ctx (-> ctx (assoc ::anding? true) (dissoc ::or-limit))]
+    (if (and inverse-id (< (alength population) (alength ids)))
+      (let [matches (i/->int-array (evaluate-sexp ctx target-sexp population))]
+        (charge! ctx QueryBudget/RELATIONS (alength matches))
+        (i/intersection ids (SemiJoin/related db matches (int inverse-id))))
+      (let [_ (charge! ctx QueryBudget/RELATIONS (alength ids))
+            targets (SemiJoin/related db ids (int relation-id))
+            matches (i/->int-array (evaluate-sexp ctx target-sexp targets))]
+        (SemiJoin/relatedTo db ids (int relation-id) matches)))))
+
+(defmethod evaluate-sexp* :sexp/op
+  [ctx [_ [op-sexp-type filter-info] :as conformed-sexp] ids]
+  (if (vector? (:filter/field filter-info))
+    (path-filter ctx conformed-sexp ids)
+    (let [filter-info (assoc filter-info :filter/sexp-type op-sexp-type)]
+      ;; reducers only ever see sorted int arrays
+      ((lookup-reducer ctx filter-info) ctx filter-info (i/->int-array ids)))))
+
+(defmethod evaluate-sexp* :sexp/field
   [_ctx [_ field] ids]
   ;; same logic as (exists? field)
-  (i/intersection ids (c/ids (keyword field))))
-
-
-(defmethod evaluate-sexp :sexp/not
-  [ctx [_ {:keys [single/sexp]}] ids]
-  (i/difference ids (evaluate-sexp ctx sexp ids)))
+  (i/intersection* ids (c/ids (keyword field))))
+
+
+(defmethod evaluate-sexp* :sexp/not
+  [ctx [_ {:keys [single/sexp]} :as conformed-sexp] ids]
+  (if (streamable? ctx conformed-sexp)
+    (.toIntArray (sexp-cursor ctx conformed-sexp ids))
+    (i/difference* ids (evaluate-sexp (dissoc ctx ::or-limit) sexp ids))))
+
+(defn- and-narrow
+  [ctx streams sexps init-ids]
+  ;; with a cache the result after each clause is cached as the `and` of the clauses
+  ;; so far, ands sharing their first clauses share those results. `prefix` is nil
+  ;; once an opaque clause has been seen.
+  (let [narrow (fn [prefix f]
+                 (if (seq prefix) (cached ctx ['and prefix] init-ids f) (f)))]
+    ;; the streamable clauses are merged in one pass before the clauses needing reducers
+    (loop [[sexp & more] sexps
+           prefix (when (::cache ctx) (into #{} (map sexp-key) streams))
+           ids (if streams
+                 (narrow prefix #(.toIntArray (and-cursor ctx streams init-ids)))
+                 init-ids)]
+      (cond
+        (nil? sexp) ids
+
+        ;; nothing left to narrow so skip the remaining built-in clauses
+        (and (i/empty? ids) (not (opaque? ctx sexp))) (recur more (some-> prefix (conj (sexp-key sexp))) ids)
+
+        :else
+        (let [prefix (when-not (opaque? ctx sexp) (some-> prefix (conj (sexp-key sexp))))
+              ;; only the last clause may stop early, see `or-sexps`
+              ctx (cond-> (assoc ctx ::anding? true) more (dissoc ::or-limit))]
+          ;; need this intersection because sexp might be an or expr for example
+          (recur more prefix (narrow prefix #(i/intersection* ids (evaluate-sexp ctx sexp ids)))))))))
 
 (defn- and-sexps
   [ctx sexp-info init-ids]
-  (loop [[sexp & more] (:list/sexp sexp-info)
-         ids init-ids]
-    (if sexp
-      ;; need this intersection because sexp might be an or expr for example
-      (recur more (i/intersection ids (evaluate-sexp (assoc ctx ::anding? true) sexp ids)))
-      ids)))
+  (let [{streams true sexps false} (group-by (partial streamable? ctx) (:list/sexp sexp-info))]
+    (and-narrow ctx streams sexps init-ids)))
+
+;; once this fraction of the ids has matched, the remaining branches are evaluated
+;; on the ids not matched yet rather than on all of them
+(def ^:private +or-narrowing-ratio+ 8)
+
+(defn- confined?
+  "True when the result of `conformed-sexp` is confined to the ids it is given even
+  outside an `and`. Index scans and custom ops aren't, so an `or` branch of them is
+  always evaluated on all the ids as narrowing it would change the result."
+  [ctx [sexp-type x :as conformed-sexp]]
+  (case sexp-type
+    :sexp/field true
+    :sexp/op (or (vector? (:filter/field (second x))) (streamable? ctx conformed-sexp))
+    :sexp/not true
+    :sexp/logical (or (= 'and (:op/boolean x)) (every? (partial confined? ctx) (:list/sexp x)))
+    false))
+
+(defn- parallel-branches
+  "Evaluates `(f sexp)` for each of `sexps` as a task on a fork-join pool of
+  `parallelism` threads, returning their results in order."
+  [parallelism f sexps]
+  (let [^ForkJoinPool pool (ForkJoinPools/get parallelism)]
+    (->> sexps
+         (mapv (fn [sexp]
+                 ;; the tasks see the caller's bindings eg. `*enable-index-scan*`
+                 (let [^Callable task (bound-fn [] (f sexp))]
+                   (.submit pool task))))
+         (mapv #(.join ^ForkJoinTask %)))))
 
 (defn- or-sexps
-  [ctx sexp-info init-ids]
-  (let [ans (IntArrayList/new)] ;; more performant to use IntArrayList then apply i/union
-    (loop [[sexp & more] (:list/sexp sexp-info)]
-      (if sexp
-        (do
-          (.addAll ans ^int/1 (evaluate-sexp (dissoc ctx ::anding?) sexp init-ids))
-          (recur more))
-        (.toSortedIntSet ans)))))
-
-(defmethod evaluate-sexp :sexp/logical
-  [ctx [_ sexp-info] init-ids]
-  (let [{boolean-op :op/boolean} sexp-info]
-    (case boolean-op
-      and (and-sexps ctx sexp-info init-ids)
-      or (or-sexps ctx sexp-info init-ids))))
+  "The streamable branches are merged in one pass first, the others are evaluated in
+  (planned) order, or all at once on `(::parallelism ctx)` threads. Once enough ids
+  have matched the branches confined to the ids they are given, see `confined?`, are
+  evaluated on the ids not yet matched, which doesn't change their union. With an
+  `::or-limit` they always are and evaluation stops as soon as at least that many
+  have matched, so the result is a subset of the full result."
+  [{::keys [parallelism or-limit] :or {parallelism 1} :as ctx} sexp-info init-ids]
+  (let [ctx (dissoc ctx ::anding? ::or-limit)
+        narrowed (assoc ctx ::anding? true)
+        {streams true sexps false} (group-by (partial streamable? ctx) (:list/sexp sexp-info))
+        streamed (when streams
+                   (->> streams
+                        (map #(sexp-cursor ctx % init-ids))
+                        ^"[Lconceptual.util.IntCursor;" (into-array IntCursor)
+                        IntCursor/or
+                        .toIntArray))
+        n (i/intersection-count init-ids)
+        narrow? (fn [^long matched] (or or-limit (<= n (* +or-narrowing-ratio+ matched))))
+        evaluate-branch (fn [narrow? sexp remaining]
+                          (if (and narrow? (confined? ctx sexp))
+                            (evaluate-sexp narrowed sexp remaining)
+                            (evaluate-sexp ctx sexp init-ids)))]
+    ;; a single k-way union over all the branches, dense unions stay as bitsets
+    ;; for the enclosing and/not which probe rather than merge against them
+    (if (and (< 1 parallelism) (next sexps) (not or-limit))
+      (let [remaining (cond-> init-ids streamed (i/difference* streamed))
+            narrow? (narrow? (- n (i/intersection-count remaining)))]
+        (i/union-all* (cond-> (parallel-branches parallelism #(evaluate-branch narrow? % remaining) sexps)
+                    streamed (conj streamed))))
+      (loop [[sexp & more] sexps
+             results (cond-> [] streamed (conj streamed))
+             remaining (cond-> init-ids (and streamed sexps) (i/difference* streamed))]
+        (let [matched (- n (i/intersection-count remaining))]
+          (if (or (nil? sexp) (and or-limit (<= or-limit matched)))
+            (i/union-all* results)
+            (let [result (evaluate-branch (narrow? matched) sexp remaining)]
+              (recur more
+                     (conj results result)
+                     (cond-> remaining more (i/difference* result))))))))))
+
+(defmethod evaluate-sexp* :sexp/logical
+  [ctx [_ sexp-info :as conformed-sexp] init-ids]
+  (if (streamable? ctx conformed-sexp)
+    (.toIntArray (sexp-cursor ctx conformed-sexp init-ids))
+    (let [{boolean-op :op/boolean} sexp-info]
+      (case boolean-op
+        and (and-sexps ctx sexp-info init-ids)
+        or (or-sexps ctx sexp-info init-ids)))))
+
+(defn- count-sexp
+  "Like `evaluate-sexp` but returns the number of matching ids. Streamable
+  expressions are counted off their cursor, otherwise only the last step is
+  counted rather than materialized."
+  ^long [ctx [sexp-type sexp-info :as conformed-sexp] init-ids]
+  (cond
+    (streamable? ctx conformed-sexp)
+    (.count (sexp-cursor ctx conformed-sexp init-ids))
+
+    (= :sexp/not sexp-type)
+    (i/difference-count init-ids (evaluate-sexp ctx (:single/sexp sexp-info) init-ids))
+
+    (and (= :sexp/logical sexp-type) (= 'and (:op/boolean sexp-info)))
+    (let [{streams true sexps false} (group-by (partial streamable? ctx) (:list/sexp sexp-info))
+          ids (and-narrow ctx streams (butlast sexps) init-ids)]
+      (i/intersection-count ids (evaluate-sexp (assoc ctx ::anding? true) (last sexps) ids)))
+
+    :else
+    (i/intersection-count (evaluate-sexp ctx conformed-sexp init-ids))))
+
+;; Compiling
+
+(defn- compile-sexp
+  [[sexp-type x :as conformed-sexp]]
+  (case sexp-type
+    :sexp/op
+    (let [[op-sexp-type {[_op-type op] :filter/op :as filter-info}] x
+          scan (some-> (+op->pred+ op)
+                       (field-filter (assoc filter-info :filter/sexp-type op-sexp-type)))]
+      (cond-> conformed-sexp
+        scan (assoc-in [1 1 ::scan] scan)))
+
+    :sexp/not
+    [sexp-type (update x :single/sexp compile-sexp)]
+
+    :sexp/logical
+    [sexp-type (update x :list/sexp (partial mapv compile-sexp))]
+
+    conformed-sexp))
+
+(defn compile
+  "Returns `conformed-sexp` with its comparisons and set ops compiled to `FieldFilter`s,
+  which test values against the key id resolved here rather than per concept. Compiled
+  expressions don't depend on the registry and may be reused, a compiled filter is
+  ignored if the db no longer has the same key id for its field."
+  [conformed-sexp]
+  (if (::compiled? (meta conformed-sexp))
+    conformed-sexp
+    ;; conformed nodes are map entries which don't support metadata
+    (with-meta (vec (compile-sexp conformed-sexp)) {::compiled? true})))
+
+(def ^:private +compiled-cache-size+ 1024)
+
+(defonce ^:private ^LruCache compiled-cache (LruCache. +compiled-cache-size+))
+
+(defn compiled
+  "Conforms and compiles `sexp`, the result is cached by `sexp`."
+  [sexp]
+  (or (.get compiled-cache sexp)
+      (let [ans (compile (conform sexp))]
+        (.put compiled-cache sexp ans)
+        ans)))
+
+(defn clear-compiled-cache!
+  []
+  (.clear compiled-cache))
+
+;; Planning
+
+(def ^:private +sample-size+ 64)
+
+(defn- db-size
+  ^double []
+  (double (inc (c/max-id))))
+
+(defn- sample
+  "Returns up to `n` ids spread evenly through the sorted int array `ids`."
+  ^int/1 [^ints ids n]
+  (let [len (alength ids)]
+    (if (<= len n)
+      ids
+      (let [step (quot len n)]
+        (int-array (map #(aget ids (int (* % step))) (range n)))))))
+
+(defn- op-selectivity
+  "Concepts need the field to match so the fraction having it is the upper bound,
+  when index scans are enabled it is scaled by the hit rate on a sample of them.
+  Custom ops, registered reducers and paths are opaque and estimated to match everything."
+  ^double [ctx [_ [_ {[op-type] :filter/op field :filter/field :as filter-info}] :as conformed-sexp]]
+  (if (or (nil? field) (vector? field) (= :op/custom op-type) (registered-reducer ctx filter-info))
+    1.0
+    (let [ids (c/ids (keyword field))
+          base (/ (alength ids) (db-size))]
+      (if (or (not *enable-index-scan*) (zero? (alength ids)))
+        base
+        (let [xs (sample ids +sample-size+)]
+          (try
+            ;; samples are new arrays each time so not worth caching
+            (* base (/ (i/intersection-count xs (evaluate-sexp (-> ctx (assoc ::anding? true) (dissoc ::cache)) conformed-sexp xs))
+                       (double (alength xs))))
+            (catch ExceptionInfo _
+              base)))))))
+
+(defn- selectivity
+  "Estimates the fraction of all concepts matching `conformed-sexp` from the length of
+  the `:db/ids` of its fields assuming clauses are independent."
+  ^double [ctx [sexp-type x :as conformed-sexp]]
+  (case sexp-type
+    (:sexp/field :sexp/op)
+    (if-let [[p negate?] (posting ctx conformed-sexp)]
+      (let [sel (/ (clojure.core/count p) (db-size))]
+        (if negate? (- 1.0 sel) sel))
+      (op-selectivity ctx conformed-sexp))
+
+    :sexp/not
+    (- 1.0 (selectivity ctx (:single/sexp x)))
+
+    :sexp/logical
+    (let [sels (map (partial selectivity ctx) (:list/sexp x))]
+      (case (:op/boolean x)
+        and (reduce * 1.0 sels)
+        or (- 1.0 (reduce (fn [acc sel] (* acc (- 1.0 sel))) 1.0 sels))))))
+
+(defn plan
+  "Returns `conformed-sexp` with the clauses of each `and` in evaluation order. The
+  clauses answered from `:db/ids` ie. fields, tags and `exists?` go first, they are
+  merged in one pass, followed by the rest cheapest first by estimated cardinality.
+  Evaluating an `and` stops as soon as no ids remain. The clauses of an `or` are
+  ordered the other way round, most matches first, so the later ones run on fewer
+  ids, see `or-sexps`."
+  ([conformed-sexp]
+   (plan {} conformed-sexp))
+  ([ctx [sexp-type x :as conformed-sexp]]
+   (case sexp-type
+     :sexp/not
+     [sexp-type (update x :single/sexp (partial plan ctx))]
+
+     :sexp/logical
+     (let [sexps (mapv (partial plan ctx) (:list/sexp x))]
+       [sexp-type
+        (assoc x :list/sexp
+               (let [{streams true others false} (group-by (partial streamable? ctx) sexps)
+                     order (if (= 'and (:op/boolean x)) identity -)]
+                 (into (vec streams)
+                       (if (next others)
+                         ;; estimates may sample an index scan so each is made once
+                         (->> others
+                              (map (juxt identity (partial selectivity ctx)))
+                              (sort-by (comp order second))
+                              (map first))
+                         others))))])
+
+     conformed-sexp)))
+
+(defn- unform
+  [[sexp-type x :as conformed-sexp]]
+  (if (= :sexp/field sexp-type)
+    x
+    (s/unform ::sexp conformed-sexp)))
+
+(defn- explain-sexp
+  [ctx [sexp-type x :as conformed-sexp] ids]
+  (cond-> {:sexp (unform conformed-sexp)
+           :streamed? (streamable? ctx conformed-sexp)
+           :estimate (min (i/intersection-count ids)
+                          (Math/round (* (selectivity ctx conformed-sexp) (db-size))))
+           :actual (i/intersection-count ids (evaluate-sexp (assoc ctx ::anding? true) conformed-sexp ids))}
+    (= :sexp/not sexp-type) (assoc :children [(explain-sexp ctx (:single/sexp x) ids)])
+    (= :sexp/logical sexp-type) (assoc :children (mapv #(explain-sexp ctx % ids) (:list/sexp x)))))
+
+(defn- planned
+  [ctx conformed-sexp]
+  (cond->> conformed-sexp
+    *enable-planner* (plan ctx)))
+
+(defn- limited
+  "Returns the first `limit` ids of the sorted int array `ids`."
+  ^ints [limit ^ints ids]
+  (if (and limit (< (long limit) (alength ids)))
+    (Arrays/copyOf ids (int limit))
+    ids))
 
 (defn evaluate-conformed
+  "Returns a sorted int array. Intermediate results may be `IntSet`s, see `i/union-all*`.
+  With a `::limit` in the `ctx` at most that many ids are returned, not necessarily
+  the first ones as a trailing `or` stops evaluating its branches once enough ids
+  have matched. Results aren't cached when limited."
   ([conformed-sexp init-ids]
-   (evaluate-sexp {} conformed-sexp init-ids))
+   (evaluate-conformed {} conformed-sexp init-ids))
   ([ctx conformed-sexp init-ids]
    (evaluate-conformed ctx (or (::registry ctx) (get-registry)) conformed-sexp init-ids))
-  ([ctx registry conformed-sexp init-ids]
-   (evaluate-sexp (assoc ctx ::registry registry) conformed-sexp init-ids)))
+  ([{::keys [limit] :as ctx} registry conformed-sexp init-ids]
+   (let [ctx (cond-> (-> ctx (assoc ::registry registry) (dissoc ::limit))
+               limit (-> (dissoc ::cache) (assoc ::or-limit limit)))]
+     (limited
+      limit
+      (i/->int-array
+       (if (and (::cache ctx) (not (opaque? ctx conformed-sexp)))
+         ;; a cached result needn't be planned
+         (cached ctx (sexp-key conformed-sexp) init-ids
+                 #(evaluate-sexp* ctx (planned ctx (compile conformed-sexp)) init-ids))
+         (evaluate-sexp ctx (planned ctx (compile conformed-sexp)) init-ids)))))))
 
 (defn evaluate
   "`sexp` is an s-expression. `init-ids` is a sorted int array, `ctx` is a map."
@@ -408,7 +988,33 @@
   ([registry sexp init-ids]
    (evaluate {} registry sexp init-ids))
   ([ctx registry sexp init-ids]
-   (evaluate-conformed ctx registry (conform sexp) init-ids)))
+   (evaluate-conformed ctx registry (compiled sexp) init-ids)))
+
+
+(defn count
+  "Returns the number of ids in `init-ids` matching `sexp`, ie. the length of
+  `evaluate`, without materializing the result where possible."
+  ([sexp init-ids]
+   (count (get-registry) sexp init-ids))
+  ([registry sexp init-ids]
+   (count {} registry sexp init-ids))
+  ([ctx registry sexp init-ids]
+   (let [ctx (assoc ctx ::registry registry)]
+     (count-sexp ctx (planned ctx (compiled sexp)) init-ids))))
+
+(defn explain
+  "Returns the plan `evaluate` runs for `sexp` as a tree of maps with the `:sexp`,
+  whether it is `:streamed?` from `:db/ids`, its `:estimate`d and `:actual`
+  cardinality and its `:children` in evaluation order. Estimates are over all
+  concepts, capped by the number of `init-ids`. The actual cardinalities of children
+  are relative to `init-ids`, ie. before any narrowing by their siblings."
+  ([sexp init-ids]
+   (explain (get-registry) sexp init-ids))
+  ([registry sexp init-ids]
+   (explain {} registry sexp init-ids))
+  ([ctx registry sexp init-ids]
+   (let [ctx (assoc ctx ::registry registry)]
+     (explain-sexp ctx (planned ctx (compiled sexp)) init-ids))))
 
 
 (defn error-code
@@ -1,11 +1,19 @@
 (ns conceptual.alpha.pull
+  (:refer-clojure :exclude [compile])
   (:require
    [conceptual.core :as c]
    [conceptual.arrays :as a]
    [conceptual.int-sets :as i]
    [conceptual.alpha.filter :as c.filter])
   (:import
-   (java.util Arrays)))
+   (conceptual.alpha JsonWriter PullPlan QueryBudget SortKernel)
+   (conceptual.util ForkJoinPools IntArrayList LruCache)
+   (java.io BufferedWriter OutputStream OutputStreamWriter Writer)
+   (java.lang.ref WeakReference)
+   (java.nio.charset StandardCharsets)
+   (java.util Arrays)
+   (java.util.concurrent Callable ExecutionException ExecutorService Future)
+   (java.util.concurrent.atomic AtomicLong)))
 
 ;; inspiration from https://docs.datomic.com/query/query-pull.html
 
@@ -66,11 +74,16 @@
   (= ::invalid x))
 
 (defn- conform-sort
+  "`x` is a direction or a vector of directions, one per `sort-by` key."
   [x]
   (cond
     (nil? x) :asc
     (ident-like? x) (or (sort-directions (keyword x))
                         ::invalid)
+    (and (sequential? x) (seq x)) (let [xs (mapv conform-sort x)]
+                                    (if (some #(or (invalid? %) (vector? %)) xs)
+                                      ::invalid
+                                      xs))
     :else ::invalid))
 
 (defn- conform-sort-by
@@ -88,9 +101,12 @@
     (when (and sort (not sort-by))
       (throw (ex-info "`sort-by` is required if `sort` is specified" {::error ::invalid-sort-by-option-value
                                                                       :pull/key k})))
-    (when (invalid? (conform-sort sort))
-      (throw (ex-info "`sort` must be either `asc` or `desc`." {::error ::invalid-sort-option-value
-                                                                :pull/key k})))
+    (when (or (invalid? (conform-sort sort))
+              (and (sequential? sort)
+                   (not= (count sort) (if (sequential? sort-by) (count sort-by) 1))))
+      (throw (ex-info "`sort` must be either `asc` or `desc` or a vector of those, one per `sort-by`."
+                      {::error ::invalid-sort-option-value
+                       :pull/key k})))
     (when (invalid? (conform-sort-by sort-by))
       (throw (ex-info "`sort-by` must be a string, symbol, keyword or a vector of string, symbol or keyword"
                       {::error ::invalid-sort-by-option-value
@@ -157,10 +173,8 @@
         _ (validate-sort-params k sort sort-by)
         f-sexp (resolve-variable variables (:filter opts))
 
-        ;; TODO: don't conform the same filter repeatedly
         opts (cond-> opts
-
-               f-sexp (assoc :filter (c.filter/conform f-sexp))
+               f-sexp (assoc :filter (c.filter/compiled f-sexp))
                as (update :as keyword)
                limit (-> (dissoc :limit)
                          (assoc :max-page-size limit))
@@ -175,10 +189,6 @@
     (validate-key-info key-info)
     key-info))
 
-(defn- compare-inverse
-  [x y]
-  (unchecked-multiply-int -1 (compare x y)))
-
 (defn default-pattern-finalizer
   [m]
   (select-keys m [:pull/key-infos :pull/relations]))
@@ -332,12 +342,20 @@
       c
       (recur (assoc-kv ctx key-info c) more))))
 
+(defn- page-size
+  [{:keys [max-page-size]}]
+  (min *max-relation-page-size*
+       (or max-page-size *max-relation-page-size*)))
+
 (defn default-paginator
-  ^int/1 [{:keys [page max-page-size]} ^int/1 ids]
-  (let [page (or page 0)
-        max-page-size (min *max-relation-page-size*
-                           (or max-page-size *max-relation-page-size*))]
-    (paginate ids page max-page-size)))
+  ^int/1 [{:keys [page] :as opts} ^int/1 ids]
+  (paginate ids (or page 0) (page-size opts)))
+
+(defn- page-end
+  "Returns the number of ids up to the end of the page `opts` selects, see
+  `default-paginator`."
+  [{:keys [page] :as opts}]
+  (int (min Integer/MAX_VALUE (* (inc (long (or page 0))) (long (page-size opts))))))
 
 (defn- paginate-relation
   ^int/1 [{:keys [pull/ctx pull/key-opts] :as rel-opts} ^int/1 ids]
@@ -346,22 +364,27 @@
     (paginate ids key-opts)))
 
 (defn- apply-sort
-  "`ids` is an array of primitive ints, `-sort` a keyword and `-sort-by`
-  is either a keyword or a vector of keywords representing sort by attr(s).
-  Defaults to ascending sort if `-sort` is not `:desc`."
-  [-sort -sort-by ids]
-  (let [compare-fn (if (= :desc -sort)
-                     compare-inverse
-                     compare)
-        ks-fn (if (keyword? -sort-by)
-                -sort-by
-                (apply juxt -sort-by))]
-    (->> ids
-         (sequence (comp (map c/seek)
-                         (remove nil?)))
-         (sort-by ks-fn compare-fn)
-         (mapv :db/id)
-         int-array)))
+  "`ids` is an array of primitive ints, `-sort` a keyword or a vector of keywords,
+  one per key, and `-sort-by` is either a keyword or a vector of keywords
+  representing sort by attr(s). Defaults to ascending sort if `-sort` is not
+  `:desc`. Sorts as `sort-by` with `compare` would, nils first, see `SortKernel`.
+  Keys declared sortable are sorted by their stored `:db/ranks`. With a `limit` returns
+  only the first `limit` ids, which are selected without sorting all of them."
+  ([-sort -sort-by ids]
+   (apply-sort -sort -sort-by ids nil))
+  ([-sort -sort-by ids limit]
+   (let [db (c/db)
+         ks (if (keyword? -sort-by) [-sort-by] -sort-by)
+         kids (map #(or (c/key->id db %) -1) ks)
+         ranks-id (c/key->id db :db/ranks)
+         directions (if (sequential? -sort) -sort (repeat (count ks) -sort))
+         ids (if (a/int-array? ids) ids (int-array ids))
+         kids (int-array kids)
+         desc (boolean-array (map #(= :desc %) directions))
+         ranks (into-array int/1 (map #(when (<= 0 %) (c/value-0 db ranks-id %)) kids))]
+     (if limit
+       (SortKernel/sort db ids kids desc ranks (int limit))
+       (SortKernel/sort db ids kids desc ranks)))))
 
 (defn- apply-relation-key-info
   [rel-opts {:keys [pull/key pull/key-opts]} id+]
@@ -373,21 +396,33 @@
         v (if (and many? f-sexp)
             (c.filter/evaluate-conformed (:pull/filter-ctx rel-opts) f-sexp id+)
             id+)
+        ;; only the ids up to the end of the page need sorting unless a custom paginator
+        ;; or relation finalizer may see all of them
+        {:pull/keys [paginator relation-finalizer]} (:pull/ctx rel-opts)
+        limit (when-not (or paginator relation-finalizer)
+                (page-end key-opts))
         ;; must sort before paginate and only valid for to-many relations
+        v-all v
         v (if (and many? -sort-by)
-            (apply-sort -sort -sort-by v)
+            (apply-sort -sort -sort-by v limit)
             v)
         v' (cond->> v
              many? (paginate-relation rel-opts))]
     (cond-> {:k (or as key)
              :v v'}
-      many? (assoc :v-all v))))
+      many? (assoc :v-all (if limit v-all v)))))
 
 
-(defn reify-relations*
-  [{:keys [pull/relation-value pull/relation-finalizer pull/filter-ctx]
-    :or {relation-value default-value
-         relation-finalizer :pull/concept} :as ctx}
+(defn- charge!
+  [^QueryBudget budget resource n]
+  (when budget
+    (.charge budget (int resource) (long n))))
+
+(defn- resolve-relation
+  "Returns `[rel-opts output-key id+]` for `relation` of the concept `c` where `id+` is
+  the related id or the filtered, sorted and paginated related ids."
+  [{:keys [pull/relation-value pull/filter-ctx pull/budget]
+    :or {relation-value default-value} :as ctx}
    {:keys [pull/key pull/key-id pull/key-opts pull/pattern pull.virtual-attribute/resolver-fn] :as relation} c]
   (let [depth (cond-> (::depth ctx)
                 (not pattern) dec)
@@ -398,22 +433,77 @@
                   :pull/concept c
                   :pull/depth depth
                   :pull/reified-relation? (some? pattern)
-                  :pull/filter-ctx filter-ctx
+                  :pull/filter-ctx (cond-> filter-ctx
+                                     budget (assoc ::c.filter/budget budget))
                   :db/id (:db/id c)}
         id+ (if resolver-fn
               (resolver-fn rel-opts)
               (relation-value rel-opts))
         ids (if (int? id+) id+ (i/set id+))
-        {k' :k id+ :v all-ids :v-all} (apply-relation-key-info rel-opts relation ids)
-        rel-opts (cond-> rel-opts
-                   all-ids (assoc :pull/all-ids all-ids))
-        xs (if pattern
-             (pull ctx pattern id+)
-             id+)
-        c (assoc c k' xs)
-        ;; must pass along output-key for handling metadata etc
-        c (relation-finalizer (assoc rel-opts :pull/concept c :pull/output-key k'))]
-    c))
+        _ (charge! budget QueryBudget/RELATIONS (if (int? ids) 1 (alength ^ints ids)))
+        {k' :k id+ :v all-ids :v-all} (apply-relation-key-info rel-opts relation ids)]
+    [(cond-> rel-opts
+       all-ids (assoc :pull/all-ids all-ids))
+     k'
+     id+]))
+
+(defn- finalize-relation
+  [{:keys [pull/relation-finalizer]
+    :or {relation-finalizer :pull/concept}}
+   {c :pull/concept :as rel-opts} k' xs]
+  ;; must pass along output-key for handling metadata etc
+  (relation-finalizer (assoc rel-opts :pull/concept (assoc c k' xs) :pull/output-key k')))
+
+(def ^:private +memo-size+
+  "Default number of concepts of sub-patterns memoized per request."
+  4096)
+
+(def ^:private context-fns
+  [:pull/relation-value :pull/relation-finalizer :pull/concept-finalizer :pull/paginator])
+
+(defn- with-memo
+  "Returns `ctx` with a memo of the concepts pulled for relations, shared by the whole
+  request, unless it has one already, its size is 0 or one of its fns is declared to
+  depend on more than the concept's id and pattern by `:pull/context-dependent?`
+  metadata, eg. on the `:pull/depth` or parent `:pull/concept`."
+  [{:keys [pull/memo-size] :or {memo-size +memo-size+} :as ctx}]
+  (if (or (contains? ctx ::memo)
+          (not (pos? memo-size))
+          (some #(:pull/context-dependent? (meta (get ctx %))) context-fns))
+    ctx
+    (assoc ctx ::memo (LruCache. memo-size))))
+
+(defn- pull-related
+  "Returns a map of each of `ids` to its concept of the sub-pattern `pattern`. Those in
+  the memo of the request are reused, the others are pulled together and memoized by
+  id and the identity of the pattern, which includes the options of its keys and
+  relations."
+  [{::keys [^LruCache memo] :as ctx} pattern ^ints ids]
+  (if-not memo
+    (zipmap ids (pull ctx pattern ids))
+    (let [h (System/identityHashCode pattern)
+          missing (IntArrayList.)
+          hits (reduce (fn [m id]
+                         (let [[p x] (.get memo [h id])]
+                           (if (identical? p pattern)
+                             (assoc m id x)
+                             (do (.add missing (int id)) m))))
+                       {} ids)
+          missing (.toIntArray missing)]
+      (reduce (fn [m [id x]]
+                (.put memo [h id] [pattern x])
+                (assoc m id x))
+              hits
+              (map vector missing (pull ctx pattern missing))))))
+
+(defn reify-relations*
+  [ctx {:keys [pull/pattern] :as relation} c]
+  (let [[rel-opts k' id+] (resolve-relation ctx relation c)]
+    (finalize-relation ctx rel-opts k' (cond
+                                         (not pattern) id+
+                                         (int? id+) (get (pull-related ctx pattern (int-array [id+])) id+)
+                                         :else (let [ids (i/->int-array id+)]
+                                                 (mapv (pull-related ctx pattern ids) ids))))))
 
 (defn reify-relations
   [ctx relations c]
@@ -424,14 +514,223 @@
         c
         (recur (reify-relations* ctx r c) more)))))
 
+(defn- reify-relation-batch
+  "Like `reify-relations*` for all the concepts `cs` at once: the related ids of all of
+  them are pulled together, each distinct id once, and the results shared."
+  [ctx {:keys [pull/pattern] :as relation} cs]
+  (let [resolved (mapv #(resolve-relation ctx relation %) cs)
+        id->x (when pattern
+                (let [ids (IntArrayList.)]
+                  (doseq [[_ _ id+] resolved]
+                    (cond
+                      (int? id+) (.add ids (int id+))
+                      (a/int-array? id+) (.addAll ids ^ints id+)
+                      :else (run! #(.add ids (int %)) id+)))
+                  (pull-related ctx pattern (.toSortedIntSet ids))))]
+    (mapv (fn [[rel-opts k' id+]]
+            (finalize-relation ctx rel-opts k' (cond
+                                                 (not pattern) id+
+                                                 (int? id+) (id->x id+)
+                                                 :else (mapv id->x id+))))
+          resolved)))
+
+(defn- reify-relations-batch
+  "Reifies `relations` of the concepts `cs` level by level, see `reify-relation-batch`.
+  The relations are resolved in order so each sees the concepts with the relations
+  before it as `reify-relations` does."
+  [ctx relations cs]
+  ;; only the top level is pulled in parallel, related concepts are pulled on the
+  ;; thread of their chunk which mustn't wait on tasks of a possibly bounded executor
+  (let [ctx (-> ctx
+                (update ::depth (fnil inc 0))
+                (dissoc :pull/parallelism :pull/executor))]
+    (reduce (fn [cs relation] (reify-relation-batch ctx relation cs)) cs relations)))
+
 
 (def default-finalizer :pull/concept)
 
+
+;; Plans
+
+(defn compile
+  "Returns `parsed-pattern`, see `parse`, with a plan for `pull`: the stored keys
+  before any virtual attribute are projected by a `PullPlan` in one pass, the rest
+  of the keys are assoc'd one by one as their resolvers may look at the concept so
+  far. The patterns of the relations are compiled too. A compiled pattern is
+  returned as is."
+  [{:keys [pull/key-infos pull/relations] :as parsed-pattern}]
+  (if (::plan parsed-pattern)
+    parsed-pattern
+    (let [[stored more] (->> key-infos
+                             ;; keys with neither are never in the output
+                             (filter #(or (:pull/key-id %) (:pull.virtual-attribute/resolver-fn %)))
+                             ;; the plan always starts with :db/id
+                             (remove #(and (= :db/id (:pull/key %)) (nil? (get-in % [:pull/key-opts :as]))))
+                             (split-with :pull/key-id))]
+      (cond-> (assoc parsed-pattern
+                     ::plan (PullPlan. (object-array (map #(or (get-in % [:pull/key-opts :as]) (:pull/key %)) stored))
+                                       (int-array (map :pull/key-id stored))
+                                       (int-array (map #(or (get-in % [:pull/key-opts :max-page-size]) PullPlan/NO_LIMIT)
+                                                       stored)))
+                     ::key-infos (vec more)
+                     ::rm-db-id? (not-any? #(= :db/id (:pull/key %)) key-infos))
+        relations (assoc :pull/relations
+                         (mapv #(cond-> % (:pull/pattern %) (update :pull/pattern compile)) relations))))))
+
+(def ^:private +compiled-cache-size+ 256)
+
+(defonce ^:private ^LruCache compiled-cache (LruCache. +compiled-cache-size+))
+
+(defn- compiled
+  "Returns the compiled `parsed-pattern` cached by its identity."
+  [parsed-pattern]
+  (if (::plan parsed-pattern)
+    parsed-pattern
+    (let [k (System/identityHashCode parsed-pattern)
+          [pattern plan] (.get compiled-cache k)]
+      (if (identical? pattern parsed-pattern)
+        plan
+        (let [plan (compile parsed-pattern)]
+          (.put compiled-cache k [parsed-pattern plan])
+          plan)))))
+
+
+(def ^:private +cursor-cache-size+ 64)
+
+;; [query db-identity-hash] -> {:db db-ref :ids ids :order ordered-ids}
+(defonce ^:private ^LruCache order-cache (LruCache. +cursor-cache-size+))
+
+;; cursor -> {:query query :db db-ref :offset offset :last-id id}
+(defonce ^:private ^LruCache cursor-cache (LruCache. (* 16 +cursor-cache-size+)))
+
+(defonce ^:private ^AtomicLong cursor-counter (AtomicLong.))
+
+(defn- cursor-error
+  [cursor]
+  (ex-info "Unknown or expired cursor, start over with `:cursor :start`."
+           {::error ::invalid-cursor
+            :pull/cursor cursor}))
+
+(defn- same-db?
+  "Whether `db-ref`, a `WeakReference` held by a cache so that it doesn't keep replaced
+  dbs alive, refers to `db`. Every write replaces the db, as does binding another one to
+  `c/*db*`."
+  [^WeakReference db-ref db]
+  (and (some? db-ref) (identical? db (.get db-ref))))
+
+(defn- order-key
+  [query db]
+  [query (System/identityHashCode db)])
+
+(defn- ordered-ids
+  "Returns `ids` in the order of `query`, cached for the current db. Unless the query has
+  a `cursor-key` the ids are compared on a cache hit."
+  ^int/1 [{:keys [sort sort-by cursor-key]} query ^int/1 ids budget]
+  (let [db (c/db)
+        k (order-key query db)
+        hit (.get order-cache k)]
+    (if (and (same-db? (:db hit) db)
+             (or cursor-key (Arrays/equals ids ^int/1 (:ids hit))))
+      (:order hit)
+      (let [_ (when sort-by (charge! budget QueryBudget/IDS (alength ids)))
+            order (cond->> ids
+                    sort-by (apply-sort sort sort-by))]
+        (.put order-cache k {:db (WeakReference. db) :ids ids :order order})
+        order))))
+
+(defn- cursor-page
+  "Returns `[ids next-cursor]`, the page of `ids` at `cursor` and the cursor of the next
+  page or nil after the last one. Pages are copied out of the ordered ids of the first."
+  [{:keys [cursor sort sort-by cursor-key] :as opts} ids budget]
+  (let [db (c/db)
+        [^int/1 order offset query]
+        (if (= :start cursor)
+          (let [ids (if (a/int-array? ids) ids (int-array ids))
+                query [(or cursor-key (Arrays/hashCode ^int/1 ids)) sort sort-by]]
+            [(ordered-ids opts query ids budget) 0 query])
+          (let [{:keys [query offset last-id] :as state} (.get cursor-cache cursor)
+                hit (when (same-db? (:db state) db)
+                      (.get order-cache (order-key query db)))
+                ^int/1 order (when (same-db? (:db hit) db)
+                               (:order hit))]
+            ;; the order cached may have been replaced by one of other ids with the same hash
+            (when (or (nil? order)
+                      (< (alength order) offset)
+                      (not= last-id (aget order (dec offset))))
+              (throw (cursor-error cursor)))
+            [order offset query]))
+        end (min (alength order) (+ offset (page-size opts)))
+        next-cursor (when (< offset end (alength order))
+                      (let [token (str "pull-cursor-" (.incrementAndGet cursor-counter))]
+                        (.put cursor-cache token {:query query
+                                                  :db (WeakReference. db)
+                                                  :offset end
+                                                  :last-id (aget order (dec end))})
+                        token))]
+    [(Arrays/copyOfRange order (int offset) (int end)) next-cursor]))
+
+(def ^:private +min-parallel-chunk-size+
+  "Pulls of fewer ids than twice this aren't split."
+  1024)
+
+;; more chunks than threads so that threads finishing early can take more
+(def ^:private +chunks-per-thread+ 4)
+
+(defn- parallel-pull
+  "Splits `ids` into chunks which `pull-ids` pulls as tasks on `executor`, or a fork-join
+  pool of `parallelism` threads, returning the concepts in the order of `ids`."
+  [{:keys [pull/parallelism pull/executor]} pull-ids ids]
+  (let [ids (vec ids)
+        n (count ids)
+        parallelism (if executor parallelism (ForkJoinPools/parallelism parallelism))
+        chunks (min (* parallelism +chunks-per-thread+) (quot n +min-parallel-chunk-size+))
+        chunk-size (quot (+ n chunks -1) chunks)
+        ^ExecutorService executor (or executor (ForkJoinPools/get parallelism))]
+    (let [futures (mapv (fn [start]
+                          ;; the tasks see the caller's bindings eg. `*max-relation-page-size*`
+                          (let [^Callable task (bound-fn [] (pull-ids (subvec ids start (min n (+ start chunk-size)))))]
+                            (.submit executor task)))
+                        (range 0 n chunk-size))]
+      (try
+        (into [] (mapcat #(.get ^Future %)) futures)
+        (catch Throwable t
+          ;; the other chunks are of no use once one failed
+          (run! #(.cancel ^Future % true) futures)
+          (throw (or (when (instance? ExecutionException t) (.getCause t)) t)))))))
+
+(defn- select-ids
+  "Returns `[ids next-cursor]`, the ids of `ids` to pull sorted and paginated as per
+  `opts`, see `pull`, and the cursor of the next page if paginated by cursor."
+  [{:keys [pull/paginator pull/budget]} cb-opts ids {:keys [page cursor] :as opts}]
+  (validate-sort-params nil (:sort opts) (:sort-by opts))
+  (when-not (or (nil? cursor) (= :start cursor) (string? cursor))
+    (throw (ex-info "`cursor` must be `:start` or a cursor returned by `pull`."
+                    {::error ::invalid-cursor
+                     :pull/cursor cursor})))
+  (let [{:keys [sort sort-by]} (conform-sort-params opts)]
+    (if cursor
+      (cursor-page (assoc opts :sort sort :sort-by sort-by) ids budget)
+      [(as-> ids ids
+         (if sort-by
+           (do (charge! budget QueryBudget/IDS (count ids))
+               ;; only the ids up to the end of the page need sorting
+               (apply-sort sort sort-by ids (when (and page (not paginator))
+                                              (page-end opts))))
+           ids)
+         (if-not page
+           ids
+           (if paginator
+             (paginator (merge cb-opts opts) ids)
+             (default-paginator opts ids))))])))
+
 (defn pull
   "`id+` can be an `int`, `int-array` or any seq of int.
   `ctx` is a map and can include fns to customize behavior. All the fns
   receive a map with key `:pull/ctx`.
 
+  Relations are resolved level by level: the related ids of all the concepts are
+  pulled together and each distinct related concept is pulled, and finalized, once.
+
   `:pull/relation-value`
      - fn which takes in a map and returns either a conceptual db/id or a sequence or int array of db/ids
      - input map has keys `:pull/ctx`, `:pull/key`, `:pull/key-opts`, `:pull/concept`, `:pull/depth` and `:db/id`
@@ -458,37 +757,143 @@
        and other keys such as `:pull/key` `:pull/key-opts` when invoked for paginating a to-many relation
      - second args is an int array of conceptual db ids
 
+  `:pull/budget`
+     - a `QueryBudget`, see `conceptual.alpha.filter/new-budget`, checked for every concept pulled
+     - pulled and sorted concepts are charged as ids and expanded relations as relations
+     - exceeding it throws, see `conceptual.alpha.filter/error-code`
+
+  `:pull/memo-size`
+     - the concepts pulled for relations are memoized by id and sub-pattern for the request,
+       so concepts related to many are built once, up to this many, 4096 by default, 0 for none
+     - fns of `ctx` whose results depend on more than the concept's id, eg. on `:pull/depth`
+       or the parent `:pull/concept`, must say so by `{:pull/context-dependent? true}`
+       metadata, see `with-meta`, which disables the memo
+
+  `:pull/parallelism`
+     - number of threads large pulls are split across, 1 by default, at most the available processors
+     - the ids are pulled in chunks, each with its relations, and the concepts returned in order
+     - the fns of `ctx` are called on those threads, once per concept as ever, so must be thread safe
+     - only the top level is split, the related concepts of a chunk are pulled on its thread
+     - once a chunk fails the others are cancelled and its error rethrown
+     - `:pull/executor` is an `ExecutorService` to run the chunks on rather than a fork-join pool,
+       eg. one of virtual threads if the fns block
+
   `opts`
-     - optional map of keys `sort`, `sort-by`, `page` and `max-page-size`"
+     - optional map of keys `sort`, `sort-by`, `page` and `max-page-size`
+     - or `cursor` rather than `page`, `:start` for the first page and thereafter the
+       `:pull/cursor` of the metadata of the previous page, nil after the last one
+     - the order of the ids is cached for the pages of a cursor while the db is unchanged,
+       identified by `cursor-key`, eg. the filter the ids came from, if given or else by the
+       ids, which needn't be passed for subsequent pages when given
+     - a cursor is invalid once the db changes, including binding another db to
+       `conceptual.core/*db*`, or it's been evicted from the cache, and pulling it throws"
   [{:keys [pull/concept-finalizer
-           pull/paginator
-           pull/filter-ctx]
-    :or {concept-finalizer default-finalizer} :as ctx} parsed-pattern id+ &
-   {:keys [sort sort-by page] :as opts}]
-  (validate-sort-params nil sort sort-by)
-  (let [{:keys [sort sort-by]} (conform-sort-params opts)
-        {:keys [pull/key-infos pull/relations]} parsed-pattern
-        ks (set (map :pull/key key-infos))
-        rm-db-id? (not (contains? ks :db/id))
+           pull/filter-ctx
+           pull/budget
+           pull/parallelism]
+    :or {concept-finalizer default-finalizer} :as ctx} parsed-pattern id+ & {:as opts}]
+  (let [ctx (with-memo ctx)
+        {:keys [pull/relations]
+         ::keys [^PullPlan plan key-infos rm-db-id?]} (compiled parsed-pattern)
+        db (c/db)
         cb-opts (cond-> {:pull/ctx ctx
                          :pull/parsed-pattern parsed-pattern}
                   filter-ctx (assoc :pull/filter-ctx filter-ctx))
-        xform (comp (map (fn [id] {:db/id id}))
-                    (map (partial assoc-all-kvs ctx key-infos))
-                    (map (partial reify-relations ctx relations))
-                    (map #(concept-finalizer (assoc cb-opts :pull/concept %)))
+        xform (comp (map #(concept-finalizer (assoc cb-opts :pull/concept %)))
                     (map (fn [c]
                            (cond-> c
                              rm-db-id? (dissoc c :db/id)))))
         one? (int? id+)
-        ids (if one? [id+] id+)
-        ids (cond->> ids
-              sort-by (apply-sort sort sort-by))
-        ids (if-not page
-              ids
-              (if paginator
-                (paginator (merge cb-opts opts) ids)
-                (default-paginator opts ids)))
-        cs (into [] xform ids)]
+        [ids next-cursor] (select-ids ctx cb-opts (if one? [id+] id+) opts)
+        pull-ids (fn [ids]
+                   (->> ids
+                        (into [] (map (fn [id]
+                                        (charge! budget QueryBudget/IDS 1)
+                                        (assoc-all-kvs ctx key-infos (.project plan db id)))))
+                        (reify-relations-batch ctx relations)
+                        (into [] xform)))
+        cs (if (and (< 1 (or parallelism 1))
+                    (<= (* 2 +min-parallel-chunk-size+) (count ids)))
+             (parallel-pull ctx pull-ids ids)
+             (pull-ids ids))]
     (cond-> cs
+      (:cursor opts) (with-meta {:pull/cursor next-cursor})
       one? first)))
+
+
+;; Streaming
+
+(defn- streamable?
+  "True if the concepts of the compiled `pattern` can be written straight from the db,
+  ie. neither it nor its relations have virtual attributes or custom resolvers and
+  `ctx` has none of the hooks which look at the concepts."
+  [ctx {:keys [pull/relations] ::keys [key-infos]}]
+  (and (empty? key-infos)
+       (not-any? ctx [:pull/concept-finalizer :pull/relation-finalizer :pull/relation-value])
+       (every? (fn [{:keys [pull/pattern pull.virtual-attribute/resolver-fn]}]
+                 (and (not resolver-fn)
+                      (or (nil? pattern) (streamable? ctx pattern))))
+               relations)))
+
+(declare write-concepts!)
+
+(defn- write-concept!
+  "Writes the concept `id` as `pull` would return it, reading its values and related
+  ids from the db as it goes."
+  [{:keys [pull/budget] :as ctx} {:keys [pull/relations] ::keys [^PullPlan plan rm-db-id?]} id ^JsonWriter w]
+  (charge! budget QueryBudget/IDS 1)
+  (.beginObject w)
+  (.write plan (c/db) (int id) (not rm-db-id?) w)
+  (let [ctx (update ctx ::depth (fnil inc 0))]
+    (doseq [{:keys [pull/pattern] :as relation} relations]
+      (let [[_ k' id+] (resolve-relation ctx relation {:db/id id})]
+        (.name w k')
+        (if pattern
+          (write-concepts! ctx pattern id+ w)
+          (.value w id+)))))
+  (.endObject w))
+
+(defn- write-concepts!
+  "Writes the concept `id+`, or an array of the concepts `id+`, one at a time. Concepts
+  which aren't `streamable?` are pulled one by one and written."
+  [ctx pattern id+ ^JsonWriter w]
+  (let [stream? (streamable? ctx pattern)
+        write! (fn [id]
+                 (if stream?
+                   (write-concept! ctx pattern id w)
+                   (.value w (pull ctx pattern (int id)))))]
+    (if (int? id+)
+      (write! id+)
+      (do (.beginArray w)
+          (run! write! id+)
+          (.endArray w)))))
+
+(defn write-json!
+  "[ALPHA] Like `pull` but writes the concepts as JSON to `out`, a `Writer` or an
+  `OutputStream` written UTF-8, as it goes rather than returning them. Besides the
+  concept being written only the memo of related concepts is kept, bounded by
+  `:pull/memo-size` of `ctx`, see `pull`, 0 for none. Concepts of patterns without
+  virtual attributes and of a `ctx` without the hooks that look at concepts are never
+  built at all and are written straight from the db. Keywords are written as strings,
+  eg. `\"sf/name\"`.
+
+  Returns the `:pull/cursor` of the next page when paginated by `cursor`. `out` is
+  flushed but not closed."
+  [ctx parsed-pattern id+ out & {:as opts}]
+  (let [^Writer writer (if (instance? OutputStream out)
+                         (BufferedWriter. (OutputStreamWriter. ^OutputStream out StandardCharsets/UTF_8))
+                         out)
+        w (JsonWriter. writer)
+        ctx (with-memo ctx)
+        pattern (compiled parsed-pattern)
+        cb-opts (cond-> {:pull/ctx ctx
+                         :pull/parsed-pattern parsed-pattern}
+                  (:pull/filter-ctx ctx) (assoc :pull/filter-ctx (:pull/filter-ctx ctx)))
+        one? (int? id+)
+        [ids next-cursor] (select-ids ctx cb-opts (if one? [id+] id+) opts)]
+    (cond
+      (not one?) (write-concepts! ctx pattern ids w)
+      (seq ids) (write-concepts! ctx pattern (first ids) w)
+      :else (.value w nil))
+    (.flush w)
+    next-cursor))
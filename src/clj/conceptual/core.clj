@@ -4,8 +4,10 @@
    [conceptual.int-sets :as i]
    [clojure.data.int-map :as int-map])
   (:import
-   (conceptual.core DB DBMap IndexAggregator PersistentDB WritableDB)
-   (clojure.lang Keyword)))
+   (conceptual.core DB DBMap IndexAggregator PersistentDB RDB WritableDB)
+   (conceptual.util Ranks)
+   (clojure.lang Keyword)
+   (java.util.concurrent.atomic AtomicLong)))
 
 (set! *warn-on-reflection* true)
 
@@ -14,6 +16,19 @@
 
 (defonce ^{:dynamic true :tag IndexAggregator} *aggr* nil)
 
+(defonce ^:private ^AtomicLong db-generation (AtomicLong.))
+
+;; every write replaces the db in `*db*`
+(add-watch *db* ::generation (fn [_k _ref old new]
+                               (when-not (identical? old new)
+                                 (.incrementAndGet db-generation))))
+
+(defn generation
+  "Returns a counter which is incremented by every write to `*db*`, caches of query
+  results are valid while it is unchanged."
+  ^long []
+  (.get db-generation))
+
 ;; internal keys
 (def ^{:private true :const true} -id (int DB/ID_ID))
 (def ^{:private true :const true} -key (int DB/KEY_ID))
@@ -435,6 +450,17 @@
   (^int/1 [db id]
    (or (:db/ids (seek db id)) i/+empty+)))
 
+(defn stored-ids
+  "[ALPHA] Like `ids` but if the db has been `pack!`ed the result may be a
+  `conceptual.util.PackedIntSet` rather than being decoded, see `i/cursor`."
+  ([id]
+   (stored-ids @*db* id))
+  ([db id]
+   (or (when (instance? RDB db)
+         (when-let [kid (if (keyword? id) (key->id db id) id)]
+           (.getStoredValue ^RDB db (int kid) DB/IDS_ID)))
+       (ids db id))))
+
 ;; NB. no filter, remove or keep to discourage potentially slow code
 ;;     of course, you can use transducers to get that anyway
 (defn- map-transducer
@@ -499,7 +525,7 @@
 (defn ->persistent-map
   [^DBMap m]
   (when m
-    (.asPersistentMap (.projectMap m))))
+    (.asPersistentMap m)))
 
 (defn project-map
   ([ks ids]
@@ -547,6 +573,23 @@
 ;; TODO: go through keys and determine if they are of type :db/key?
 ;; and if they are index them.
 
+(defn rank-index
+  "[ALPHA] Returns the rank index of the property with id `kid`, an int array
+  holding at each concept's id the dense rank of its value in the order of
+  `compare`, 0 for none, see `conceptual.util.Ranks`. Sortable properties, see
+  `conceptual.schema/declare-sortable!`, store theirs as `:db/ranks`."
+  ^ints [^DB db kid]
+  (let [ids (ids db kid)
+        vs (object-array (alength ids))]
+    (dotimes [i (alength ids)]
+      (aset vs i (.getValue db (aget ids i) ^int kid)))
+    (Ranks/index ids (Ranks/of vs) (inc (.getMaxId db)))))
+
+(defn update-ranks
+  "[ALPHA] Stores the `rank-index` of the property with id `kid` as its `:db/ranks`."
+  [^WritableDB db ^IndexAggregator aggr kid]
+  (.update db aggr ^int kid ^int (key->id-or-throw db :db/ranks) (rank-index db kid)))
+
 (defn apply-aggregator!
   ([^IndexAggregator aggr]
    (apply-aggregator! (db) aggr))
@@ -567,7 +610,14 @@
                 (let [ids' (-> (ids db k)
                                (i/union (.ids aggr k))
                                (i/difference (.removeIds aggr k)))]
-                  (.update ^WritableDB db aggr ^int k db-ids-id ids'))))))))
+                  (.update ^WritableDB db aggr ^int k db-ids-id ids')))))
+     ;; the rank indexes of sortable keys whose values changed are rebuilt
+     (when-let [sortable-id (key->id @*db* :db/sortable?)]
+       (doseq [k (distinct (concat (.keys aggr) (.changedKeys aggr)))]
+         (swap! *db*
+                (fn [db]
+                  (cond-> db
+                    (value-0 db sortable-id k) (update-ranks aggr k)))))))))
 
 (defmacro with-aggr-0
   ([db binding & bodies]
@@ -602,6 +652,21 @@
    (compact-db! db type)))
 
 
+(defn pack!
+  "[ALPHA] Stores the strictly ascending int array values, ie. `:db/ids` and most
+  to-many relations, of at least `min-length` ints compressed, see
+  `conceptual.util.PackedIntSet`. Reads decode them transparently. Only an RDB can be
+  packed so `compact!` first. Pickles store them decoded."
+  ([] (pack! 128))
+  ([min-length] (swap! *db* pack! min-length))
+  ([db min-length]
+   (if (instance? RDB db)
+     (.pack ^RDB db (int min-length))
+     (throw (ex-info "Only an RDB can be packed, compact! it first"
+                     {:conceptual/error :conceptual/unsupported-db-error
+                      :db-type (db-type db)})))))
+
+
 (defmulti pickle-db! (fn [_type _opts] (db-type db)))
 
 (defmethod pickle-db! :default
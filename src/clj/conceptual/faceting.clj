@@ -2,29 +2,71 @@
   (:require
    [conceptual.core :refer [*db*]])
   (:import
-   (conceptual.core DB)))
+   (conceptual.alpha QueryBudget)
+   (conceptual.core DB)
+   (java.util Arrays)))
 
 
 (set! *warn-on-reflection* true)
 
+(defn- budgeted
+  "Returns the ids of `ids` within the `:budget` of `opts`, see
+  `conceptual.alpha.filter/new-budget`, charging it for them. The db counts in a
+  single pass so the ids are charged before counting, a chunk at a time as in
+  `conceptual.alpha.faceting`. `:on-exceeded` is either `:abort`, the default,
+  throwing once the budget is exceeded or `:partial` returning the ids of the
+  chunks charged so far so that only those are counted, check
+  `(.isExceeded budget)` to tell whether the counts are complete."
+  ^int/1 [^ints ids {:keys [^QueryBudget budget on-exceeded] :or {on-exceeded :abort}}]
+  (if (or (nil? budget) (nil? ids))
+    ids
+    (let [partial? (case on-exceeded
+                     :abort false
+                     :partial true)
+          n (alength ids)]
+      (loop [i 0]
+        (if (<= n i)
+          ids
+          (let [k (min QueryBudget/CHECK_INTERVAL (- n i))]
+            (if (if partial?
+                  (.tryCharge budget QueryBudget/IDS k)
+                  (do (.charge budget QueryBudget/IDS k) true))
+              (recur (+ i k))
+              (Arrays/copyOf ids (int i)))))))))
+
 (defn keys-by-frequency
+  "`opts` may have a `:budget`, see `conceptual.alpha.filter/new-budget`, and
+  `:on-exceeded`, see `conceptual.alpha.faceting`."
   ([ids] (.getKeysByFrequency ^DB @*db* ids))
-  ([db ids] (.getKeysByFrequency ^DB db ids)))
+  ([db ids] (.getKeysByFrequency ^DB db ids))
+  ([db ids opts] (.getKeysByFrequency ^DB db (budgeted ids opts))))
 
 (defn keys-by-frequency-with-skip
+  "`opts` may have a `:budget`, see `conceptual.alpha.filter/new-budget`, and
+  `:on-exceeded`, see `conceptual.alpha.faceting`."
   ([skip-keys ids]
    (.getKeysByFrequency ^DB @*db* ids skip-keys))
   ([db skip-keys ids]
-   (.getKeysByFrequency ^DB db ids skip-keys)))
+   (.getKeysByFrequency ^DB db ids skip-keys))
+  ([db skip-keys ids opts]
+   (.getKeysByFrequency ^DB db (budgeted ids opts) skip-keys)))
 
 (defn relations-by-frequency
+  "`opts` may have a `:budget`, see `conceptual.alpha.filter/new-budget`, and
+  `:on-exceeded`, see `conceptual.alpha.faceting`."
   ([relation-key ids]
    (.getRelationsByFrequency ^DB @*db* ids relation-key))
   ([db relation-key ids]
-   (.getRelationsByFrequency ^DB db ids relation-key)))
+   (.getRelationsByFrequency ^DB db ids relation-key))
+  ([db relation-key ids opts]
+   (.getRelationsByFrequency ^DB db (budgeted ids opts) relation-key)))
 
 (defn relations-by-frequency-with-skip
+  "`opts` may have a `:budget`, see `conceptual.alpha.filter/new-budget`, and
+  `:on-exceeded`, see `conceptual.alpha.faceting`."
   ([relation-key skip-keys ids]
    (.getRelationsByFrequency ^DB @*db* ids relation-key skip-keys))
   ([db relation-key skip-keys ids]
-   (.getRelationsByFrequency ^DB db ids relation-key skip-keys)))
+   (.getRelationsByFrequency ^DB db ids relation-key skip-keys))
+  ([db relation-key skip-keys ids opts]
+   (.getRelationsByFrequency ^DB db (budgeted ids opts) relation-key skip-keys)))
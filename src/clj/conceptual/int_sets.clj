@@ -2,7 +2,7 @@
   "Functions in this namespace are non-lazy by default."
   (:refer-clojure :exclude [= contains? conj disj empty? filter map mapcat not-empty remove set take])
   (:import
-   (conceptual.util IntegerSets IntArrayList)
+   (conceptual.util IntegerSets IntArrayList IntCursor IntSet PackedIntSet SortedIntSet)
    (java.util Arrays)))
 
 (set! *warn-on-reflection* true)
@@ -13,11 +13,56 @@
   [x]
   (clojure.core/= int/1 (class x)))
 
+(defn int-set?
+  "Returns `true` if `x` is a `conceptual.util.IntSet` ie either a sorted int array
+  or a bitset depending on density."
+  [x]
+  (instance? IntSet x))
+
+(defn ->int-set
+  "[ALPHA] Returns `xs` as an `IntSet` in its cheapest representation. `xs` is either
+  an `IntSet`, a sorted int array or a collection of ints."
+  ^IntSet [xs]
+  (cond
+    (int-set? xs) xs
+    (nil? xs) SortedIntSet/EMPTY
+    (int-array? xs) (IntSet/of ^int/1 xs)
+    :else (IntSet/of (IntArrayList/sortedIntSet xs))))
+
+(defn packed?
+  "Returns `true` if `x` is a compressed `conceptual.util.PackedIntSet`."
+  [x]
+  (instance? PackedIntSet x))
+
+(defn pack
+  "[ALPHA] Returns the strictly ascending int array `xs` as a compressed `PackedIntSet`."
+  ^PackedIntSet [^ints xs]
+  (PackedIntSet/of (or xs +empty+)))
+
+(defn ->int-array
+  "[ALPHA] Returns `xs` as a sorted int array. `IntSet`s and `PackedIntSet`s are
+  materialized, sorted int arrays and `nil` are returned as is."
+  ^int/1 [xs]
+  (cond
+    (int-set? xs) (.toIntArray ^IntSet xs)
+    (packed? xs) (.toIntArray ^PackedIntSet xs)
+    :else xs))
+
+(defn cursor
+  "[ALPHA] Returns a new `IntCursor` over the sorted int array, `IntSet` or
+  `PackedIntSet` `xs`. Packed sets are decoded a block at a time."
+  ^IntCursor [xs]
+  (cond
+    (int-set? xs) (.cursor ^IntSet xs)
+    (packed? xs) (.cursor ^PackedIntSet xs)
+    :else (IntCursor/of ^int/1 xs)))
+
 (defn empty?
   [x]
-  (if x
-    (zero? (alength ^int/1 x))
-    true))
+  (cond
+    (nil? x) true
+    (int-set? x) (.isEmpty ^IntSet x)
+    :else (zero? (alength ^int/1 x))))
 
 (defn not-empty
   [x]
@@ -38,6 +83,11 @@
                result)
         result))))
 
+(defn- int-set-reduce
+  "Folds the `IntSet` op `f` over `sets`, coercing each to an `IntSet`."
+  [f sets]
+  (reduce (fn [acc x] (f acc (->int-set x))) (->int-set (first sets)) (rest sets)))
+
 (defn intersection
   "Returns the integer intersection of the given sorted int array sets."
   (^int/1 [] +empty+)
@@ -52,8 +102,79 @@
   (^int/1 [^ints a ^ints b ^ints c ^ints d ^ints e ^ints f ^ints g ^ints h & more]
    (chunked-reduce intersection (intersection a b c d e f g h) more 7)))
 
+(defn intersection*
+  "[ALPHA] Like `intersection` but the inputs may also be `IntSet`s. If any of them
+  is, the result is an `IntSet`, otherwise it is a sorted int array."
+  ([a] (or a +empty+))
+  ([a b]
+   (if (or (int-set? a) (int-set? b))
+     (IntSet/intersection (->int-set a) (->int-set b))
+     (intersection a b)))
+  ([a b & more]
+   (reduce intersection* (intersection* a b) more)))
+
+(defn intersection-count
+  "Returns the size of the intersection of the sorted int arrays or `IntSet`s
+  without allocating the intersection."
+  ([a] (cond
+         (int-set? a) (.count ^IntSet a)
+         (nil? a) 0
+         :else (alength ^ints a)))
+  ([a b]
+   (if (or (int-set? a) (int-set? b))
+     (IntSet/intersectionCount (->int-set a) (->int-set b))
+     (IntegerSets/intersectionCount ^ints a ^ints b)))
+  ([a b & more]
+   (let [sets (list* a b more)]
+     (if (some int-set? sets)
+       (intersection-count (reduce intersection* (butlast sets)) (last sets))
+       (IntegerSets/intersectionCount ^"[[I" (into-array int/1 sets))))))
+
+(defn difference-count
+  "Returns the size of the difference of the sorted int arrays or `IntSet`s `a`
+  and `b` without allocating the difference."
+  ^long [a b]
+  (if (or (int-set? a) (int-set? b))
+    (IntSet/differenceCount (->int-set a) (->int-set b))
+    (IntegerSets/differenceCount ^ints a ^ints b)))
+
+(defn packed-intersection
+  "[ALPHA] Returns the intersection of `a` and `b`, either of which may be a
+  `PackedIntSet`, as a sorted int array. Packed blocks whose range can't match
+  are skipped without being decoded."
+  ^int/1 [a b]
+  (cond
+    (and (packed? a) (packed? b)) (PackedIntSet/intersection ^PackedIntSet a ^PackedIntSet b)
+    (packed? a) (PackedIntSet/intersection ^PackedIntSet a ^int/1 (->int-array b))
+    (packed? b) (PackedIntSet/intersection ^PackedIntSet b ^int/1 (->int-array a))
+    :else (->int-array (intersection* a b))))
+
+(defn vectorized?
+  "Returns `true` if the set operations are using the Vector API. This requires
+  the `jdk.incubator.vector` module to be added to the JVM, see `:shared` in `deps.edn`."
+  []
+  IntegerSets/VECTORIZED)
+
+(defn union-all*
+  "[ALPHA] Returns the union of the collection `sets` of sorted int arrays or `IntSet`s
+  as an `IntSet` in its cheapest representation. Dense unions of int arrays are built
+  directly as bitsets."
+  ^IntSet [sets]
+  (if (some int-set? sets)
+    (IntSet/optimize (int-set-reduce IntSet/union sets))
+    (IntSet/unionOf (into-array int/1 sets))))
+
+(defn union*
+  "[ALPHA] Like `union` but the inputs may also be `IntSet`s. The result is always an
+  `IntSet`, see `union-all*` which takes a collection."
+  (^IntSet [a] (union-all* [a]))
+  (^IntSet [a b] (union-all* [a b]))
+  (^IntSet [a b & more] (union-all* (list* a b more))))
+
 (defn union
   "Returns the set union of input sorted int sets. This is `nil` safe, but NOT thread safe.
+  All the inputs are unioned at once, either by a min-heap merge or, when the ids are
+  dense, by a bitmap sweep.
   Currently works correctly even if inputs are not sorted or have duplicates but it
   is an implementation detail that should NOT be relied on."
   (^int/1 [] +empty+)
@@ -100,6 +221,17 @@
   (^int/1 [^ints a ^ints b ^ints c ^ints d ^ints e ^ints f ^ints g ^ints h & more]
    (difference a (apply union a b c d e f g h more))))
 
+(defn difference*
+  "[ALPHA] Like `difference` but the inputs may also be `IntSet`s. If any of them
+  is, the result is an `IntSet`, otherwise it is a sorted int array."
+  ([a] (or a +empty+))
+  ([a b]
+   (if (or (int-set? a) (int-set? b))
+     (IntSet/difference (->int-set a) (->int-set b))
+     (difference a b)))
+  ([a b & more]
+   (reduce difference* (difference* a b) more)))
+
 (defn difference!
   "[ALPHA] Returns the set difference. This is `nil` safe but NOT thread safe. Similar to `difference` but
   avoids unnecessary allocations in edge cases."
@@ -142,9 +274,9 @@
 
 (defn index-of
   "Returns the index of a key in a sorted int array, -1 if not found."
-  ^long [key ^ints coll]
+  ^long [key coll]
   (if key
-    (IntegerSets/contains coll key)
+    (IntegerSets/contains (->int-array coll) key)
     -1))
 
 (defn index
@@ -154,8 +286,10 @@
 
 (defn member?
   "Returns `true` if `key` is in `coll`"
-  [key ^ints coll]
-  (not= -1 (index-of key coll)))
+  [key coll]
+  (if (int-set? coll)
+    (boolean (and key (.contains ^IntSet coll (int key))))
+    (not= -1 (index-of key coll))))
 
 (defn contains?
   "Returns `true` if `key` is in `coll`"
@@ -165,17 +299,17 @@
 (defn =
   "Returns true if set `a` and set `b` have equal contents."
   [a b]
-  (IntegerSets/equals a b))
+  (IntegerSets/equals (->int-array a) (->int-array b)))
 
 (defn subset?
   "Is set1 a subset of set2?"
-  [^ints set1 ^ints set2]
-  (= (intersection set1 set2) set1))
+  [set1 set2]
+  (= (intersection* set1 set2) set1))
 
 (defn superset?
   "Is set1 a superset of set2?"
-  [^ints set1 ^ints set2]
-  (= (intersection set1 set2) set2))
+  [set1 set2]
+  (= (intersection* set1 set2) set2))
 
 (defn encode
   "Encodes and integer array into a byte array."
@@ -190,9 +324,10 @@
 (defn set
   ([] +empty+)
   (^int/1 [xs]
-   (if (int-array? xs)
-     xs
-     (IntArrayList/sortedIntSet xs))))
+   (cond
+     (int-array? xs) xs
+     (int-set? xs) (->int-array xs)
+     :else (IntArrayList/sortedIntSet xs))))
 
 (defn sort!
   "[ALPHA] Sorts an int array in place and returns the sorted array. NB. The input `xs` is
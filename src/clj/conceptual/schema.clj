@@ -57,6 +57,29 @@
              (declare-tag! db aggr kw))
            db args)))
 
+(defn declare-sortable!
+  "[ALPHA] Declares the property `key` sortable: its rank index, see
+  `conceptual.core/rank-index`, is stored as `:db/ranks` and rebuilt by
+  `conceptual.core/apply-aggregator!` whenever its values change, so `pull`
+  sorts by it without reading and comparing the values. Writes without an
+  aggregator leave it stale, as they do `:db/ids`.
+
+  The index is rebuilt from scratch, sorting the values of all the concepts
+  having the key and allocating an int array of `(inc max-id)`, once per
+  aggregator writing the key. Write many concepts with one aggregator, see
+  `conceptual.core/with-aggr`, rather than one each."
+  ([key]
+   (c/with-aggr [aggr]
+     (declare-sortable! aggr key)))
+  ([aggr key]
+   (swap! *db* declare-sortable! aggr key))
+  ([^DB db ^IndexAggregator aggr ^Keyword key]
+   (let [db (cond-> db
+              (not (c/key->id db :db/sortable?)) (declare-tag! aggr :db/sortable?)
+              (not (c/key->id db :db/ranks)) (declare-property! aggr :db/ranks int/1))
+         db (c/update! db aggr {:db/key key :db/sortable? true})]
+     (c/update-ranks db aggr (c/key->id-or-throw db key)))))
+
 (defn declare-to-one-relation!
   ([key]
    (c/with-aggr [aggr]
@@ -6,12 +6,35 @@ public final class FacetsAlpha {
 
     private FacetsAlpha() {}
 
+    /**
+     * Charges the next `n` ids to `budget`, if any, returning false when the
+     * facet should stop early with the counts so far.
+     */
+    private static boolean charge(final QueryBudget budget, final int n, final boolean partial) {
+        if (budget == null) return true;
+        if (partial) return budget.tryCharge(QueryBudget.IDS, n);
+        budget.charge(QueryBudget.IDS, n);
+        return true;
+    }
+
     /**
      * Returns an array where even indices are the relation value id and the immediate next index
      * is the count of that relation value id
      */
     public static int[] getToManyRelationsByFrequency(final DB db, final int[] ids, final int relationKey,
                                                       final int minId, final int maxId) {
+        return getToManyRelationsByFrequency(db, ids, relationKey, minId, maxId, null, false);
+    }
+
+    /**
+     * Like {@link #getToManyRelationsByFrequency(DB, int[], int, int, int)} charging
+     * the ids to `budget`. When `partial` is true the counts of the ids seen
+     * so far are returned once the budget is exceeded, see
+     * {@link QueryBudget#isExceeded}, otherwise it throws.
+     */
+    public static int[] getToManyRelationsByFrequency(final DB db, final int[] ids, final int relationKey,
+                                                      final int minId, final int maxId,
+                                                      final QueryBudget budget, final boolean partial) {
         if (ids == null) return null;
 
         final int[] freqBins = new int[maxId + 1];
@@ -19,6 +42,8 @@ public final class FacetsAlpha {
         int usedBins = 0;
         int[] relations;
         for (int i = 0; i < ids.length; i++) {
+            if (i % QueryBudget.CHECK_INTERVAL == 0
+                && !charge(budget, Math.min(QueryBudget.CHECK_INTERVAL, ids.length - i), partial)) break;
             relations = (int[]) db.getValue(ids[i], relationKey);
             if (relations != null) {
                 for (int j = 0; j < relations.length; j++) {
@@ -47,6 +72,16 @@ public final class FacetsAlpha {
      */
     public static int[] getToOneRelationsByFrequency(final DB db, final int[] ids, final int relationKey,
                                                      final int minId, final int maxId) {
+        return getToOneRelationsByFrequency(db, ids, relationKey, minId, maxId, null, false);
+    }
+
+    /**
+     * Like {@link #getToOneRelationsByFrequency(DB, int[], int, int, int)} with a
+     * budget, see {@link #getToManyRelationsByFrequency(DB, int[], int, int, int, QueryBudget, boolean)}.
+     */
+    public static int[] getToOneRelationsByFrequency(final DB db, final int[] ids, final int relationKey,
+                                                     final int minId, final int maxId,
+                                                     final QueryBudget budget, final boolean partial) {
         if (ids == null) return null;
 
         final int[] freqBins = new int[maxId + 1];
@@ -54,6 +89,8 @@ public final class FacetsAlpha {
         int relation;
         Object temp;
         for (int i = 0; i < ids.length; i++) {
+            if (i % QueryBudget.CHECK_INTERVAL == 0
+                && !charge(budget, Math.min(QueryBudget.CHECK_INTERVAL, ids.length - i), partial)) break;
             temp = db.getValue(ids[i], relationKey);
             if (temp != null) {
                 relation = (int) temp;
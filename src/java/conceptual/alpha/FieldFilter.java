@@ -0,0 +1,410 @@
+package conceptual.alpha;
+
+import clojure.lang.IFn;
+import clojure.lang.IPersistentCollection;
+import clojure.lang.IPersistentSet;
+import clojure.lang.Keyword;
+import clojure.lang.Numbers;
+import clojure.lang.PersistentHashSet;
+import clojure.lang.RT;
+import clojure.lang.Util;
+
+import conceptual.core.DB;
+import conceptual.util.ForkJoinPools;
+import conceptual.util.IntArrayList;
+
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A compiled index scan predicate: tests the value of one field, resolved to
+ * its key id up front, against a constant. Numeric comparisons against long
+ * and double constants are done on primitives, everything else follows
+ * Clojure's `=`, `<` etc. so results match the interpreted filter exactly.
+ *
+ * Instances are immutable and may be shared between threads and requests,
+ * {@link #isValidFor} checks the key id still refers to the same field.
+ * Large scans may be split across a fork-join pool, see
+ * {@link #scan(DB, int[], int)}, and charged to a {@link QueryBudget}.
+ */
+public abstract class FieldFilter {
+
+    public static final int EQ = 0;
+    public static final int NOT_EQ = 1;
+    public static final int LT = 2;
+    public static final int LTE = 3;
+    public static final int GT = 4;
+    public static final int GTE = 5;
+
+    public static final int SUBSET = 0;
+    public static final int SUPERSET = 1;
+    public static final int INTERSECTS = 2;
+
+    /**
+     * Scans of fewer ids than this are not split any further.
+     */
+    public static final int MIN_CHUNK_SIZE = 1 << 14;
+
+    // more chunks than threads so that threads finishing early can steal work
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private final Keyword field;
+    private final int key;
+
+    FieldFilter(final Keyword field, final int key) {
+        this.field = field;
+        this.key = key;
+    }
+
+    public Keyword getField() {
+        return field;
+    }
+
+    public int getKey() {
+        return key;
+    }
+
+    /**
+     * Tests a non-null value of the field.
+     */
+    public abstract boolean test(Object value);
+
+    public boolean isValidFor(final DB db) {
+        final Integer k = db.keywordToId(field);
+        return k != null && k == key;
+    }
+
+    /**
+     * Returns the ids, in order, of the concepts in `ids` having a value for
+     * the field which passes {@link #test}.
+     */
+    public int[] scan(final DB db, final int[] ids) {
+        return scan(db, ids, 0, ids.length, null);
+    }
+
+    private int[] scan(final DB db, final int[] ids, final int from, final int to, final QueryBudget budget) {
+        final IntArrayList ans = new IntArrayList();
+        for (int start = from; start < to; start += QueryBudget.CHECK_INTERVAL) {
+            final int end = Math.min(start + QueryBudget.CHECK_INTERVAL, to);
+            if (budget != null) budget.charge(QueryBudget.IDS, end - start);
+            for (int i = start; i < end; i++) {
+                final Object value = db.getValue(ids[i], key);
+                if (value != null && test(value)) ans.add(ids[i]);
+            }
+        }
+        return ans.toIntArray();
+    }
+
+    /**
+     * Like {@link #scan(DB, int[])} but splits `ids` into chunks which are
+     * scanned on a fork-join pool of `parallelism` threads, each into its own
+     * list. Chunks are in id order so their results are concatenated as is.
+     */
+    public int[] scan(final DB db, final int[] ids, final int parallelism) {
+        return scan(db, ids, parallelism, null);
+    }
+
+    /**
+     * Like {@link #scan(DB, int[], int)} charging the ids scanned to `budget`,
+     * which may be null.
+     */
+    public int[] scan(final DB db, final int[] ids, final int parallelism, final QueryBudget budget) {
+        if (parallelism <= 1 || ids.length < 2 * MIN_CHUNK_SIZE) return scan(db, ids, 0, ids.length, budget);
+        final ForkJoinPool pool = ForkJoinPools.get(parallelism);
+        final int chunks = Math.min(pool.getParallelism() * CHUNKS_PER_THREAD, ids.length / MIN_CHUNK_SIZE);
+        final int chunkSize = (ids.length + chunks - 1) / chunks;
+        final int[][] parts = new int[chunks][];
+        pool.invoke(new ScanTask(db, ids, chunkSize, parts, 0, chunks, budget));
+        int n = 0;
+        for (int[] part : parts) n += part.length;
+        final int[] ans = new int[n];
+        int offset = 0;
+        for (int[] part : parts) {
+            System.arraycopy(part, 0, ans, offset, part.length);
+            offset += part.length;
+        }
+        return ans;
+    }
+
+    /**
+     * Scans the chunks `[from, to)` halving the range until it is one chunk.
+     */
+    private final class ScanTask extends RecursiveAction {
+        private final DB db;
+        private final int[] ids;
+        private final int chunkSize;
+        private final int[][] parts;
+        private final int from;
+        private final int to;
+        private final QueryBudget budget;
+
+        ScanTask(final DB db, final int[] ids, final int chunkSize, final int[][] parts, final int from, final int to,
+                 final QueryBudget budget) {
+            this.db = db;
+            this.ids = ids;
+            this.chunkSize = chunkSize;
+            this.parts = parts;
+            this.from = from;
+            this.to = to;
+            this.budget = budget;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                final int start = from * chunkSize;
+                parts[from] = scan(db, ids, Math.min(start, ids.length), Math.min(start + chunkSize, ids.length), budget);
+            } else {
+                final int mid = (from + to) >>> 1;
+                invokeAll(new ScanTask(db, ids, chunkSize, parts, from, mid, budget),
+                          new ScanTask(db, ids, chunkSize, parts, mid, to, budget));
+            }
+        }
+    }
+
+    private static boolean isLong(final Object x) {
+        return x instanceof Long || x instanceof Integer || x instanceof Short || x instanceof Byte;
+    }
+
+    private static boolean isDouble(final Object x) {
+        return x instanceof Double || x instanceof Float;
+    }
+
+    /**
+     * Returns a filter for `(op field value)`, `op` is one of {@link #EQ} etc.
+     */
+    public static FieldFilter compare(final Keyword field, final int key, final int op, final Object value) {
+        if (op == NOT_EQ) return new Not(compare(field, key, EQ, value));
+        if (isLong(value)) return new LongCompare(field, key, op, ((Number) value).longValue());
+        if (isDouble(value)) return new DoubleCompare(field, key, op, ((Number) value).doubleValue());
+        if (op == EQ) return new Equiv(field, key, value);
+        return new NumberCompare(field, key, op, value);
+    }
+
+    /**
+     * Returns a filter calling `pred` with the value, which must be thread safe
+     * if the filter is used for parallel scans.
+     */
+    public static FieldFilter of(final Keyword field, final int key, final IFn pred) {
+        return new Fn(field, key, pred);
+    }
+
+    /**
+     * Returns a filter for `(contains? value field)`, ie. the value of the field
+     * is a member of the set `value`.
+     */
+    public static FieldFilter memberOf(final Keyword field, final int key, final IPersistentSet value) {
+        return new MemberOf(field, key, value);
+    }
+
+    /**
+     * Returns a filter for `(contains? field value)` where the field is a collection.
+     */
+    public static FieldFilter contains(final Keyword field, final int key, final Object value) {
+        return new Contains(field, key, value);
+    }
+
+    /**
+     * Returns a filter testing the relation `op`, one of {@link #SUBSET} etc.,
+     * of the field's values, as a set, to the set `value`.
+     */
+    public static FieldFilter setRelation(final Keyword field, final int key, final int op, final IPersistentSet value) {
+        return new SetRelation(field, key, op, value);
+    }
+
+    /**
+     * Like Clojure's `ensure-set` in the filter namespace, scalars become singletons.
+     */
+    static IPersistentSet asSet(final Object x) {
+        if (x instanceof IPersistentSet) return (IPersistentSet) x;
+        if (x instanceof IPersistentCollection) return PersistentHashSet.create(RT.seq(x));
+        return PersistentHashSet.create(new Object[]{x});
+    }
+
+    private static final class LongCompare extends FieldFilter {
+        private final int op;
+        private final long x;
+        private final Object boxed;
+
+        LongCompare(final Keyword field, final int key, final int op, final long x) {
+            super(field, key);
+            this.op = op;
+            this.x = x;
+            this.boxed = x;
+        }
+
+        @Override
+        public boolean test(final Object value) {
+            if (isLong(value)) {
+                final long v = ((Number) value).longValue();
+                switch (op) {
+                    case EQ: return v == x;
+                    case LT: return v < x;
+                    case LTE: return v <= x;
+                    case GT: return v > x;
+                    default: return v >= x;
+                }
+            }
+            if (op != EQ && isDouble(value)) return DoubleCompare.test(op, ((Number) value).doubleValue(), x);
+            return NumberCompare.test(op, value, boxed);
+        }
+    }
+
+    private static final class DoubleCompare extends FieldFilter {
+        private final int op;
+        private final double x;
+        private final Object boxed;
+
+        DoubleCompare(final Keyword field, final int key, final int op, final double x) {
+            super(field, key);
+            this.op = op;
+            this.x = x;
+            this.boxed = x;
+        }
+
+        static boolean test(final int op, final double v, final double x) {
+            switch (op) {
+                case EQ: return v == x;
+                case LT: return v < x;
+                case LTE: return v <= x;
+                case GT: return v > x;
+                default: return v >= x;
+            }
+        }
+
+        @Override
+        public boolean test(final Object value) {
+            if (isDouble(value) || (op != EQ && isLong(value))) return test(op, ((Number) value).doubleValue(), x);
+            return NumberCompare.test(op, value, boxed);
+        }
+    }
+
+    private static final class NumberCompare extends FieldFilter {
+        private final int op;
+        private final Object x;
+
+        NumberCompare(final Keyword field, final int key, final int op, final Object x) {
+            super(field, key);
+            this.op = op;
+            this.x = x;
+        }
+
+        static boolean test(final int op, final Object v, final Object x) {
+            switch (op) {
+                case EQ: return Util.equiv(v, x);
+                case LT: return Numbers.lt(v, x);
+                case LTE: return Numbers.lte(v, x);
+                case GT: return Numbers.gt(v, x);
+                default: return Numbers.gte(v, x);
+            }
+        }
+
+        @Override
+        public boolean test(final Object value) {
+            return test(op, value, x);
+        }
+    }
+
+    private static final class Equiv extends FieldFilter {
+        private final Object x;
+
+        Equiv(final Keyword field, final int key, final Object x) {
+            super(field, key);
+            this.x = x;
+        }
+
+        @Override
+        public boolean test(final Object value) {
+            return value == x || Util.equiv(value, x);
+        }
+    }
+
+    private static final class Fn extends FieldFilter {
+        private final IFn pred;
+
+        Fn(final Keyword field, final int key, final IFn pred) {
+            super(field, key);
+            this.pred = pred;
+        }
+
+        @Override
+        public boolean test(final Object value) {
+            return RT.booleanCast(pred.invoke(value));
+        }
+    }
+
+    private static final class Not extends FieldFilter {
+        private final FieldFilter filter;
+
+        Not(final FieldFilter filter) {
+            super(filter.getField(), filter.getKey());
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean test(final Object value) {
+            return !filter.test(value);
+        }
+    }
+
+    private static final class MemberOf extends FieldFilter {
+        private final IPersistentSet xs;
+
+        MemberOf(final Keyword field, final int key, final IPersistentSet xs) {
+            super(field, key);
+            this.xs = xs;
+        }
+
+        @Override
+        public boolean test(final Object value) {
+            return xs.contains(value);
+        }
+    }
+
+    private static final class Contains extends FieldFilter {
+        private final Object x;
+
+        Contains(final Keyword field, final int key, final Object x) {
+            super(field, key);
+            this.x = x;
+        }
+
+        @Override
+        public boolean test(final Object value) {
+            if (value instanceof IPersistentSet) return ((IPersistentSet) value).contains(x);
+            return asSet(value).contains(x);
+        }
+    }
+
+    private static final class SetRelation extends FieldFilter {
+        private final int op;
+        private final IPersistentSet xs;
+
+        SetRelation(final Keyword field, final int key, final int op, final IPersistentSet xs) {
+            super(field, key);
+            this.op = op;
+            this.xs = xs;
+        }
+
+        @Override
+        public boolean test(final Object value) {
+            final IPersistentSet vs = asSet(value);
+            switch (op) {
+                case SUBSET:
+                    if (vs.count() > xs.count()) return false;
+                    for (Object v : (Set<?>) vs) if (!xs.contains(v)) return false;
+                    return true;
+                case SUPERSET:
+                    if (xs.count() > vs.count()) return false;
+                    for (Object x : (Set<?>) xs) if (!vs.contains(x)) return false;
+                    return true;
+                default:
+                    final IPersistentSet smaller = vs.count() <= xs.count() ? vs : xs;
+                    final IPersistentSet larger = smaller == vs ? xs : vs;
+                    for (Object v : (Set<?>) smaller) if (larger.contains(v)) return true;
+                    return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package conceptual.alpha;
+
+import clojure.lang.BigInt;
+import clojure.lang.Named;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Writes JSON to a `Writer` as it goes, for streaming `pull` output without
+ * building the concepts first. Keywords and symbols are written as their
+ * names including the namespace, eg. `"sf/name"`, maps with any keys as
+ * objects, collections and arrays as arrays, numbers other than integers and
+ * decimals as doubles and non-finite doubles as null.
+ *
+ * Not thread safe, IO errors are rethrown as `UncheckedIOException`.
+ */
+public final class JsonWriter {
+
+    private final Writer out;
+    // per open object or array whether a value was written yet
+    private boolean[] nonEmpty = new boolean[16];
+    private int depth;
+    private boolean afterName;
+
+    public JsonWriter(final Writer out) {
+        this.out = out;
+    }
+
+    private void write(final String s) {
+        try {
+            out.write(s);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void write(final char c) {
+        try {
+            out.write(c);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void separate() {
+        if (afterName) {
+            afterName = false;
+        } else if (depth > 0) {
+            if (nonEmpty[depth - 1]) write(',');
+            nonEmpty[depth - 1] = true;
+        }
+    }
+
+    private JsonWriter open(final char c) {
+        separate();
+        write(c);
+        if (depth == nonEmpty.length) nonEmpty = Arrays.copyOf(nonEmpty, 2 * depth);
+        nonEmpty[depth++] = false;
+        return this;
+    }
+
+    private JsonWriter close(final char c) {
+        depth--;
+        write(c);
+        return this;
+    }
+
+    public JsonWriter beginObject() {
+        return open('{');
+    }
+
+    public JsonWriter endObject() {
+        return close('}');
+    }
+
+    public JsonWriter beginArray() {
+        return open('[');
+    }
+
+    public JsonWriter endArray() {
+        return close(']');
+    }
+
+    /**
+     * Writes the name of the next member of the current object.
+     */
+    public JsonWriter name(final Object key) {
+        separate();
+        string(key instanceof Named ? name((Named) key) : String.valueOf(key));
+        write(':');
+        afterName = true;
+        return this;
+    }
+
+    private static String name(final Named x) {
+        final String ns = x.getNamespace();
+        return ns == null ? x.getName() : ns + "/" + x.getName();
+    }
+
+    private void string(final String s) {
+        write('"');
+        int start = 0;
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            final String escape;
+            switch (c) {
+                case '"': escape = "\\\""; break;
+                case '\\': escape = "\\\\"; break;
+                case '\n': escape = "\\n"; break;
+                case '\r': escape = "\\r"; break;
+                case '\t': escape = "\\t"; break;
+                default:
+                    escape = c < 0x20 || c == 0x2028 || c == 0x2029 ? String.format("\\u%04x", (int) c) : null;
+            }
+            if (escape != null) {
+                if (start < i) write(s.substring(start, i));
+                write(escape);
+                start = i + 1;
+            }
+        }
+        if (start < s.length()) write(start == 0 ? s : s.substring(start));
+        write('"');
+    }
+
+    public JsonWriter value(final Object x) {
+        if (x instanceof Map) {
+            beginObject();
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) x).entrySet()) {
+                name(e.getKey());
+                value(e.getValue());
+            }
+            return endObject();
+        }
+        if (x instanceof Iterable) {
+            beginArray();
+            for (Object v : (Iterable<?>) x) value(v);
+            return endArray();
+        }
+        if (x instanceof int[]) {
+            beginArray();
+            for (int v : (int[]) x) {
+                separate();
+                write(Integer.toString(v));
+            }
+            return endArray();
+        }
+        if (x instanceof long[]) {
+            beginArray();
+            for (long v : (long[]) x) {
+                separate();
+                write(Long.toString(v));
+            }
+            return endArray();
+        }
+        if (x instanceof double[]) {
+            beginArray();
+            for (double v : (double[]) x) value(v);
+            return endArray();
+        }
+        if (x instanceof Object[]) {
+            beginArray();
+            for (Object v : (Object[]) x) value(v);
+            return endArray();
+        }
+        separate();
+        if (x == null) {
+            write("null");
+        } else if (x instanceof Boolean) {
+            write(x.toString());
+        } else if (x instanceof Long || x instanceof Integer || x instanceof Short || x instanceof Byte
+                   || x instanceof BigInt || x instanceof BigInteger || x instanceof BigDecimal) {
+            write(x.toString());
+        } else if (x instanceof Number) {
+            // eg. doubles and ratios, whose `toString` such as `1/3` isn't JSON
+            final double d = ((Number) x).doubleValue();
+            write(Double.isFinite(d) ? Double.toString(d) : "null");
+        } else if (x instanceof Named) {
+            string(name((Named) x));
+        } else {
+            string(x.toString());
+        }
+        return this;
+    }
+}
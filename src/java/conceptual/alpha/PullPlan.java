@@ -0,0 +1,74 @@
+package conceptual.alpha;
+
+import clojure.lang.IFn;
+import clojure.lang.IPersistentCollection;
+import clojure.lang.IPersistentMap;
+import clojure.lang.ITransientMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentArrayMap;
+import clojure.lang.RT;
+
+import conceptual.core.DB;
+
+/**
+ * The stored keys of a compiled pull pattern: output keys, key ids and page
+ * sizes in parallel arrays, so that {@link #project} builds a concept's map in
+ * one transient pass rather than an `assoc` per key.
+ *
+ * Instances are immutable and may be shared between threads.
+ */
+public final class PullPlan {
+
+    public static final int NO_LIMIT = -1;
+
+    private static final Keyword DB_ID = Keyword.intern("db", "id");
+    private static final IFn TAKE = RT.var("clojure.core", "take");
+
+    private final Object[] outputKeys;
+    private final int[] keyIds;
+    private final int[] limits;
+
+    /**
+     * `limits` are the `max-page-size`s of collection values or {@link #NO_LIMIT}.
+     */
+    public PullPlan(final Object[] outputKeys, final int[] keyIds, final int[] limits) {
+        this.outputKeys = outputKeys;
+        this.keyIds = keyIds;
+        this.limits = limits;
+    }
+
+    public int size() {
+        return keyIds.length;
+    }
+
+    /**
+     * Returns `{:db/id id}` with the non-nil values of the keys of `id`.
+     * Collection values with a limit are `(take limit v)` as in `assoc-kv`.
+     */
+    public IPersistentMap project(final DB db, final Object id) {
+        final int k = ((Number) id).intValue();
+        ITransientMap ans = PersistentArrayMap.EMPTY.asTransient().assoc(DB_ID, id);
+        for (int i = 0; i < keyIds.length; i++) {
+            Object v = db.getValue(k, keyIds[i]);
+            if (v == null) continue;
+            if (limits[i] != NO_LIMIT && v instanceof IPersistentCollection) v = TAKE.invoke(limits[i], v);
+            ans = ans.assoc(outputKeys[i], v);
+        }
+        return ans.persistent();
+    }
+
+    /**
+     * Writes the members {@link #project} would assoc, but `:db/id` unless
+     * `withId`, to the object `w` is in.
+     */
+    public void write(final DB db, final int id, final boolean withId, final JsonWriter w) {
+        if (withId) w.name(DB_ID).value(id);
+        for (int i = 0; i < keyIds.length; i++) {
+            if (withId && outputKeys[i] == DB_ID) continue; // written once only
+            Object v = db.getValue(id, keyIds[i]);
+            if (v == null) continue;
+            if (limits[i] != NO_LIMIT && v instanceof IPersistentCollection) v = TAKE.invoke(limits[i], v);
+            w.name(outputKeys[i]).value(v);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package conceptual.alpha;
+
+import clojure.lang.ExceptionInfo;
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentArrayMap;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A deadline and work limits shared by the steps of one query, eg. the filter
+ * and pull of a request, which check it cooperatively: inner loops
+ * {@link #charge} the work done every {@link #CHECK_INTERVAL} items and
+ * everything else calls {@link #check} as it goes. Once the deadline has
+ * passed, a limit is exceeded or the query is {@link #cancel}led every check
+ * throws an `ex-info` with a `:conceptual.alpha.filter/error` of
+ * `:conceptual.alpha.filter/deadline-exceeded`, `::budget-exceeded` or
+ * `::cancelled`.
+ *
+ * Instances are thread safe, parallel scans of one query share its budget.
+ */
+public final class QueryBudget {
+
+    /**
+     * Concepts whose values were scanned.
+     */
+    public static final int IDS = 0;
+
+    /**
+     * Related ids expanded, eg. by pull or a path field.
+     */
+    public static final int RELATIONS = 1;
+
+    /**
+     * Number of items inner loops process between charges.
+     */
+    public static final int CHECK_INTERVAL = 1024;
+
+    public static final long UNLIMITED = Long.MAX_VALUE;
+
+    private static final Keyword ERROR = Keyword.intern("conceptual.alpha.filter", "error");
+    private static final Keyword DEADLINE_EXCEEDED = Keyword.intern("conceptual.alpha.filter", "deadline-exceeded");
+    private static final Keyword BUDGET_EXCEEDED = Keyword.intern("conceptual.alpha.filter", "budget-exceeded");
+    private static final Keyword CANCELLED = Keyword.intern("conceptual.alpha.filter", "cancelled");
+    private static final Keyword RESOURCE = Keyword.intern("resource");
+    private static final Keyword LIMIT = Keyword.intern("limit");
+    private static final Keyword[] RESOURCES = {Keyword.intern("ids"), Keyword.intern("relations")};
+
+    private final long deadline;
+    private final boolean hasDeadline;
+    private final long[] limits;
+    private final AtomicLong[] used = {new AtomicLong(), new AtomicLong()};
+    private volatile IPersistentMap error;
+
+    /**
+     * `timeoutNanos`, `maxIds` and `maxRelations` may be {@link #UNLIMITED}.
+     */
+    public QueryBudget(final long timeoutNanos, final long maxIds, final long maxRelations) {
+        this.hasDeadline = timeoutNanos != UNLIMITED;
+        this.deadline = hasDeadline ? System.nanoTime() + timeoutNanos : 0;
+        this.limits = new long[]{maxIds, maxRelations};
+    }
+
+    public long getUsed(final int resource) {
+        return used[resource].get();
+    }
+
+    public long getLimit(final int resource) {
+        return limits[resource];
+    }
+
+    /**
+     * True once the deadline passed, a limit was exceeded or the query was
+     * cancelled, as seen by the last check.
+     */
+    public boolean isExceeded() {
+        return error != null;
+    }
+
+    /**
+     * The ex-data of the error thrown once exceeded, or null.
+     */
+    public IPersistentMap getError() {
+        return error;
+    }
+
+    public void cancel() {
+        fail(PersistentArrayMap.EMPTY.assoc(ERROR, CANCELLED));
+    }
+
+    private void fail(final IPersistentMap data) {
+        if (error == null) error = data;
+    }
+
+    private ExceptionInfo exception() {
+        final IPersistentMap data = error;
+        final Keyword code = (Keyword) data.valAt(ERROR);
+        final String message = code == DEADLINE_EXCEEDED ? "Query deadline exceeded."
+            : code == BUDGET_EXCEEDED ? "Query work budget exceeded."
+            : "Query cancelled.";
+        return new ExceptionInfo(message, data);
+    }
+
+    /**
+     * Like {@link #check} but returns false rather than throwing, for callers
+     * returning partial results.
+     */
+    public boolean tryCheck() {
+        if (error == null && hasDeadline && System.nanoTime() - deadline > 0) {
+            fail(PersistentArrayMap.EMPTY.assoc(ERROR, DEADLINE_EXCEEDED));
+        }
+        return error == null;
+    }
+
+    public void check() {
+        if (!tryCheck()) throw exception();
+    }
+
+    /**
+     * Like {@link #charge} but returns false rather than throwing.
+     */
+    public boolean tryCharge(final int resource, final long n) {
+        if (used[resource].addAndGet(n) > limits[resource]) {
+            fail(PersistentArrayMap.EMPTY
+                 .assoc(ERROR, BUDGET_EXCEEDED)
+                 .assoc(RESOURCE, RESOURCES[resource])
+                 .assoc(LIMIT, limits[resource]));
+        }
+        return tryCheck();
+    }
+
+    /**
+     * Adds `n` to the work done on `resource` and checks the budget.
+     */
+    public void charge(final int resource, final long n) {
+        if (!tryCharge(resource, n)) throw exception();
+    }
+}
@@ -0,0 +1,55 @@
+package conceptual.alpha;
+
+import conceptual.core.DB;
+import conceptual.util.IntArrayList;
+import conceptual.util.IntSet;
+
+/**
+ * Relation traversals for filters on path fields, eg.
+ * `(> [imdb/directors imdb.person/birth-year] 1970)`. Relation values are
+ * either an int array (to-many) or an Integer (to-one).
+ */
+public final class SemiJoin {
+
+    private SemiJoin() {}
+
+    /**
+     * Returns the sorted set of ids related to `ids` through `relationKey`.
+     */
+    public static int[] related(final DB db, final int[] ids, final int relationKey) {
+        final IntArrayList ans = new IntArrayList(ids.length);
+        for (int id : ids) {
+            final Object value = db.getValue(id, relationKey);
+            if (value instanceof int[]) {
+                ans.addAll((int[]) value);
+            } else if (value != null) {
+                ans.add(((Number) value).intValue());
+            }
+        }
+        return ans.toSortedIntSet();
+    }
+
+    /**
+     * Returns the ids in `ids` related to at least one of `targets` through
+     * `relationKey`.
+     */
+    public static int[] relatedTo(final DB db, final int[] ids, final int relationKey, final int[] targets) {
+        final IntArrayList ans = new IntArrayList();
+        if (targets.length == 0) return ans.toIntArray();
+        final IntSet ts = IntSet.of(targets);
+        for (int id : ids) {
+            final Object value = db.getValue(id, relationKey);
+            if (value instanceof int[]) {
+                for (int x : (int[]) value) {
+                    if (ts.contains(x)) {
+                        ans.add(id);
+                        break;
+                    }
+                }
+            } else if (value != null && ts.contains(((Number) value).intValue())) {
+                ans.add(id);
+            }
+        }
+        return ans.toIntArray();
+    }
+}
@@ -0,0 +1,146 @@
+package conceptual.alpha;
+
+import conceptual.core.DB;
+import conceptual.util.Ranks;
+
+import java.util.Arrays;
+
+/**
+ * Sorts concept ids by the values of one or more keys, each ascending or
+ * descending, in the same order as `sort-by` with Clojure's `compare` on the
+ * values (nil first ascending, last descending) and as stably.
+ *
+ * Each key's column of values is replaced by dense int ranks, see
+ * {@link Ranks}, or the ranks are read off the key's precomputed rank index,
+ * `:db/ranks`. A permutation of the ids is then sorted by the ranks of each
+ * key from the last to the first, each pass a primitive sort of the rank
+ * packed with the current position which keeps it stable.
+ */
+public final class SortKernel {
+
+    /**
+     * A limit of at most 1/TOP_K_RATIO of the ids is selected with a heap.
+     */
+    public static final int TOP_K_RATIO = 8;
+
+    private SortKernel() {}
+
+    /**
+     * Returns `ids` sorted by the values of `keyIds`, a key id of -1 has no
+     * values, `descending[i]` is the direction of `keyIds[i]`.
+     */
+    public static int[] sort(final DB db, final int[] ids, final int[] keyIds, final boolean[] descending) {
+        return sort(db, ids, keyIds, descending, new int[keyIds.length][]);
+    }
+
+    /**
+     * Like {@link #sort(DB, int[], int[], boolean[])} using the rank index of
+     * a key, see {@link Ranks#index}, where `rankIndexes[i]` isn't null.
+     */
+    public static int[] sort(final DB db, final int[] ids, final int[] keyIds, final boolean[] descending,
+                             final int[][] rankIndexes) {
+        final int n = ids.length;
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        final long[] packed = new long[n];
+        for (int k = keyIds.length - 1; k >= 0; k--) {
+            final int[] ranks = ranks(db, ids, keyIds[k], rankIndexes[k]);
+            int max = 0;
+            for (int r : ranks) max = Math.max(max, r);
+            if (max == 0) continue; // no values to sort by
+            for (int j = 0; j < n; j++) {
+                final int r = descending[k] ? max - ranks[order[j]] : ranks[order[j]];
+                packed[j] = ((long) r << 32) | j;
+            }
+            Arrays.sort(packed);
+            final int[] next = new int[n];
+            for (int j = 0; j < n; j++) next[j] = order[(int) packed[j]];
+            order = next;
+        }
+        final int[] ans = new int[n];
+        for (int j = 0; j < n; j++) ans[j] = ids[order[j]];
+        return ans;
+    }
+
+    /**
+     * Returns the ranks of the values of `keyId` of `ids`.
+     */
+    private static int[] ranks(final DB db, final int[] ids, final int keyId, final int[] rankIndex) {
+        if (rankIndex != null) return Ranks.of(ids, rankIndex);
+        final Object[] values = new Object[ids.length];
+        if (keyId >= 0) {
+            for (int i = 0; i < ids.length; i++) values[i] = db.getValue(ids[i], keyId);
+        }
+        return Ranks.of(values);
+    }
+
+    /**
+     * Like {@link #sort(DB, int[], int[], boolean[], int[][])} but returns only
+     * the first `limit` ids. These are selected with a bounded heap unless
+     * `limit` is more than 1/{@link #TOP_K_RATIO} of the ids, eg. a deep page,
+     * when all of them are sorted instead.
+     */
+    public static int[] sort(final DB db, final int[] ids, final int[] keyIds, final boolean[] descending,
+                             final int[][] rankIndexes, final int limit) {
+        final int n = ids.length;
+        if ((long) limit * TOP_K_RATIO > n) {
+            final int[] sorted = sort(db, ids, keyIds, descending, rankIndexes);
+            return limit < n ? Arrays.copyOf(sorted, limit) : sorted;
+        }
+        // ascending ranks per key, negated when descending which keeps nil last
+        final int[][] ranks = new int[keyIds.length][];
+        for (int k = 0; k < keyIds.length; k++) {
+            final int[] rs = ranks(db, ids, keyIds[k], rankIndexes[k]);
+            if (descending[k]) {
+                for (int j = 0; j < n; j++) rs[j] = -rs[j];
+            }
+            ranks[k] = rs;
+        }
+        // a max-heap of the positions of the `limit` least ids seen so far,
+        // ties broken by position which keeps the order stable
+        final int[] heap = new int[limit];
+        int size = 0;
+        for (int j = 0; j < n && limit > 0; j++) {
+            if (size < limit) {
+                int i = size++;
+                while (i > 0 && compare(ranks, heap[(i - 1) >>> 1], j) < 0) {
+                    heap[i] = heap[(i - 1) >>> 1];
+                    i = (i - 1) >>> 1;
+                }
+                heap[i] = j;
+            } else if (compare(ranks, j, heap[0]) < 0) {
+                siftDown(ranks, heap, j, size);
+            }
+        }
+        // pop the greatest into place from the end
+        final int[] ans = new int[size];
+        for (int end = size - 1; end >= 0; end--) {
+            ans[end] = ids[heap[0]];
+            siftDown(ranks, heap, heap[end], end);
+        }
+        return ans;
+    }
+
+    /**
+     * Replaces the root of the first `size` positions of `heap` by `j`.
+     */
+    private static void siftDown(final int[][] ranks, final int[] heap, final int j, final int size) {
+        int i = 0;
+        int child;
+        while ((child = 2 * i + 1) < size) {
+            if (child + 1 < size && compare(ranks, heap[child + 1], heap[child]) > 0) child++;
+            if (compare(ranks, heap[child], j) <= 0) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        if (size > 0) heap[i] = j;
+    }
+
+    private static int compare(final int[][] ranks, final int a, final int b) {
+        for (int[] rs : ranks) {
+            final int c = Integer.compare(rs[a], rs[b]);
+            if (c != 0) return c;
+        }
+        return Integer.compare(a, b);
+    }
+}
@@ -4,15 +4,22 @@ import clojure.lang.AFn;
 import clojure.lang.Associative;
 import clojure.lang.Counted;
 import clojure.lang.ILookup;
+import clojure.lang.IDeref;
+import clojure.lang.IFn;
+import clojure.lang.IKVReduce;
 import clojure.lang.IMapEntry;
 import clojure.lang.IPersistentCollection;
 import clojure.lang.IPersistentMap;
 import clojure.lang.IPersistentStack;
 import clojure.lang.IPersistentVector;
+import clojure.lang.IReduceInit;
 import clojure.lang.ISeq;
+import clojure.lang.ITransientMap;
 import clojure.lang.IteratorSeq;
 import clojure.lang.Keyword;
 import clojure.lang.LazilyPersistentVector;
+import clojure.lang.MapEntry;
+import clojure.lang.PersistentArrayMap;
 import clojure.lang.PersistentHashMap;
 import clojure.lang.PersistentVector;
 import clojure.lang.RT;
@@ -27,19 +34,27 @@ import java.util.AbstractSet;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
 
 /**
  * This is a lazy implementation of a map facade on the idea of a concept.
+ *
+ * `reduce`, `reduce-kv` and {@link #asPersistentMap} walk the keys and values
+ * directly rather than through entries and the keys' keywords are looked up
+ * once per map.
  */
-public class DBMap extends AFn implements ILookup, IPersistentMap, Map, Iterable, Associative, Counted {
+public class DBMap extends AFn implements ILookup, IPersistentMap, Map, Iterable, Associative, Counted,
+                                          IKVReduce, IReduceInit {
+
+    // the size up to which PersistentArrayMap is used, as by `assoc`
+    private static final int ARRAY_MAP_SIZE = 8;
 
     protected final DB db;
     protected final int id;
     protected final int[] ks;
     protected final Object[] vs;
+    private volatile Keyword[] keywords;
 
     public DBMap(DB db, int id) {
         this.db = db;
@@ -189,7 +204,20 @@ public class DBMap extends AFn implements ILookup, IPersistentMap, Map, Iterable
     /** Returns a Set view of the keys contained in this map. */
     @Override
     public Set keySet() {
-        return new LinkedHashSet<>(Arrays.asList(db.getKeysAsKeywords(id)));
+        final Keyword[] keys = keywords();
+        return new AbstractSet() {
+            public Iterator iterator() {
+                return Arrays.asList(keys).iterator();
+            }
+
+            public int size() {
+                return keys.length;
+            }
+
+            public boolean contains(Object o) {
+                return containsKey(o);
+            }
+        };
     }
 
     /**
@@ -197,12 +225,55 @@ public class DBMap extends AFn implements ILookup, IPersistentMap, Map, Iterable
      * @return
      */
     public Keyword[] getKeysAsKeywords() {
-        final int[] keys = getKeys();
-        final Keyword[] result = new Keyword[keys.length];
-        for (int i=0; i < keys.length; i++) result[i] = db.getKeyword(keys[i]);
+        return keywords().clone();
+    }
+
+    /**
+     * The keywords of {@link #getKeys}, looked up on first use. Racing threads
+     * may both look them up, with the same result.
+     */
+    protected Keyword[] keywords() {
+        Keyword[] result = keywords;
+        if (result == null) {
+            final int[] keys = getKeys();
+            result = new Keyword[keys.length];
+            for (int i=0; i < keys.length; i++) result[i] = db.getKeyword(keys[i]);
+            keywords = result;
+        }
         return result;
     }
 
+    /**
+     * Returns the value of the `idx`th key of {@link #getKeys}.
+     */
+    protected Object valueAt(final int idx) {
+        return vs[idx];
+    }
+
+    /* IKVReduce */
+
+    @Override
+    public Object kvreduce(final IFn f, Object init) {
+        final Keyword[] keys = keywords();
+        for (int i=0; i < keys.length; i++) {
+            init = f.invoke(init, keys[i], valueAt(i));
+            if (RT.isReduced(init)) return ((IDeref) init).deref();
+        }
+        return init;
+    }
+
+    /* IReduceInit */
+
+    @Override
+    public Object reduce(final IFn f, Object start) {
+        final Keyword[] keys = keywords();
+        for (int i=0; i < keys.length; i++) {
+            start = f.invoke(start, MapEntry.create(keys[i], valueAt(i)));
+            if (RT.isReduced(start)) return ((IDeref) start).deref();
+        }
+        return start;
+    }
+
     /** Associates the specified value with the specified key in this map (optional operation). */
     @Override
     public Object put(Object key, Object value) {
@@ -477,13 +548,26 @@ public class DBMap extends AFn implements ILookup, IPersistentMap, Map, Iterable
         }
     }
 
+    /**
+     * Returns the concept as a persistent map built in one pass, an array map
+     * of the keys and values if small enough else a hash map through a
+     * transient.
+     */
     public IPersistentMap asPersistentMap() {
-        IPersistentMap result = PersistentHashMap.create();
-        Keyword[] keywords = getKeysAsKeywords();
-        Object[] values = getValues();
-        for (int i=0; i < keywords.length; i++) {
-            result = result.assoc(keywords[i], values[i]);
+        final Keyword[] keys = keywords();
+        final int n = keys.length;
+        if (n <= ARRAY_MAP_SIZE) {
+            final Object[] kvs = new Object[2 * n];
+            for (int i=0; i < n; i++) {
+                kvs[2 * i] = keys[i];
+                kvs[2 * i + 1] = valueAt(i);
+            }
+            return new PersistentArrayMap(kvs);
         }
-        return result;
+        ITransientMap result = PersistentHashMap.EMPTY.asTransient();
+        for (int i=0; i < n; i++) {
+            result = result.assoc(keys[i], valueAt(i));
+        }
+        return result.persistent();
     }
 }
@@ -17,6 +17,7 @@ import clojure.lang.PersistentVector;
 import clojure.java.api.Clojure;
 
 import conceptual.util.IntArrayPool;
+import conceptual.util.PackedIntSet;
 
 import java.io.*;
 
@@ -478,9 +479,9 @@ public class DBTranscoder {
             } else if (clazz == Double.class) {
                 dos.writeInt(DOUBLE);
                 dos.writeDouble((Double) val);
-            } else if (clazz == int[].class) { // relation
+            } else if (clazz == int[].class || clazz == PackedIntSet.class) { // relation
                 dos.writeInt(INT_ARRAY);
-                int[] data = (int[]) val;
+                int[] data = (int[]) PackedIntSet.unpack(val);
                 if (data != null) {
                     dos.writeInt(data.length);
                     for (int j = 0; j < data.length; j++) {
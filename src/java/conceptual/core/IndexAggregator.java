@@ -10,6 +10,9 @@ public class IndexAggregator {
 
     Map<Integer, List<Integer>> indexAddMap = new HashMap<>();
     Map<Integer, List<Integer>> indexRemoveMap = new HashMap<>();
+    // keys whose values changed on concepts already having them, which leaves
+    // their :db/ids as they are but not their :db/ranks
+    Set<Integer> changedKeys = new HashSet<>();
 
     // TODO constructor sort and remove dups
 
@@ -27,6 +30,10 @@ public class IndexAggregator {
         indexRemoveMap.put(key, index);
     }
 
+    public void change(int key) {
+        changedKeys.add(key);
+    }
+
     public int[] keys() {
         int[] result = null;
         HashSet<Integer> keys = new HashSet<Integer>();
@@ -59,6 +66,20 @@ public class IndexAggregator {
         return result;
     }
 
+    public int[] changedKeys() {
+        int[] result = null;
+        int size = changedKeys.size();
+        if (size > 0) {
+            result = new int[size];
+            int i=0;
+            Iterator<Integer> iterator = changedKeys.iterator();
+            while (iterator.hasNext()) {
+                result[i++] = iterator.next();
+            }
+        }
+        return result;
+    }
+
     public int[] ids(int key) {
         int[] result = IntegerSets.EMPTY;
         List<Integer> addList = indexAddMap.get(key);
@@ -8,6 +8,7 @@ import conceptual.util.IntArrayPool;
 import conceptual.util.IntegerSets;
 
 
+import java.util.Arrays;
 import java.util.Set;
 import java.util.HashSet;
 
@@ -193,16 +194,94 @@ public final class PersistentDB implements WritableDB {
     }
 
     @Override
-    public KeyFrequencyPair[] getKeysByFrequency(int[] ids) { throw new UnsupportedOperationException("not yet"); }
+    public KeyFrequencyPair[] getKeysByFrequency(int[] ids) {
+        return getKeysByFrequency(ids, null);
+    }
 
     @Override
-    public KeyFrequencyPair[] getKeysByFrequency(int[] ids, int[] skipKeys) { throw new UnsupportedOperationException("not yet"); }
+    public KeyFrequencyPair[] getKeysByFrequency(int[] ids, int[] skipKeys) {
+        if (ids == null) return null;
+        final int[] freqBins = new int[maxId + 1];
+        int usedBins = 0;
+        int[] keys;
+        for (int id: ids) {
+            keys = getKeys(id);
+            if (keys == null) continue;
+            for (int key: keys) {
+                if (freqBins[key] == 0) usedBins++;
+                freqBins[key]++;
+            }
+        }
+        return toKeyFrequencyPairs(freqBins, usedBins, skipKeys);
+    }
 
     @Override
-    public KeyFrequencyPair[] getRelationsByFrequency(int[] ids, int relationKey) { throw new UnsupportedOperationException("not yet"); }
+    public KeyFrequencyPair[] getRelationsByFrequency(int[] ids, int relationKey) {
+        return getRelationsByFrequency(ids, relationKey, null);
+    }
 
+    /**
+     * <p>Each id costs at most one keyIndex and one valIndex lookup: the key
+     * position is found in the already fetched keys and the values are only
+     * fetched when the relation is present.</p>
+     *
+     * <p>As in RDB keys which are neither to-many nor to-one relations have no
+     * related ids.</p>
+     */
     @Override
-    public KeyFrequencyPair[] getRelationsByFrequency(int[] ids, int relationKey, int[] skipKeys) { throw new UnsupportedOperationException("not yet"); }
+    public KeyFrequencyPair[] getRelationsByFrequency(int[] ids, int relationKey, int[] skipKeys) {
+        if (ids == null) return null;
+        if (getValue(relationKey, DB.TO_MANY_RELATION_TAG_ID) == null
+            && getValue(relationKey, DB.TO_ONE_RELATION_TAG_ID) == null) {
+            return new KeyFrequencyPair[0];
+        }
+        final int[] freqBins = new int[maxId + 1];
+        int usedBins = 0;
+        int[] keys;
+        int idx;
+        Object temp;
+        for (int id: ids) {
+            keys = getKeys(id);
+            if (keys == null) continue;
+            idx = IntegerSets.binarySearch(keys, relationKey, 0, keys.length);
+            if (idx < 0) continue;
+            temp = getValues(id)[idx];
+            if (temp instanceof int[]) {
+                for (int rel: (int[]) temp) {
+                    if (freqBins[rel] == 0) usedBins++;
+                    freqBins[rel]++;
+                }
+            } else if (temp instanceof Integer) {
+                final int rel = (Integer) temp;
+                if (freqBins[rel] == 0) usedBins++;
+                freqBins[rel]++;
+            }
+        }
+        return toKeyFrequencyPairs(freqBins, usedBins, skipKeys);
+    }
+
+    private static KeyFrequencyPair[] toKeyFrequencyPairs(final int[] freqBins, final int usedBins, final int[] skipKeys) {
+        final KeyFrequencyPair[] unfiltered = new KeyFrequencyPair[usedBins];
+        int idx = 0;
+        int filterIndex = 0;
+        int filtered = 0;
+        final int skipLength = skipKeys == null ? 0 : skipKeys.length;
+        for (int i=0; i < freqBins.length; i++) {
+            if (freqBins[i] > 0) {
+                while (filterIndex < skipLength && skipKeys[filterIndex] < i) filterIndex++;
+                if (filterIndex < skipLength && skipKeys[filterIndex] == i) {
+                    filtered++;
+                } else {
+                    unfiltered[idx] = new KeyFrequencyPair(i, freqBins[i]);
+                    idx++;
+                }
+            }
+        }
+
+        final KeyFrequencyPair[] result = filtered == 0 ? unfiltered : Arrays.copyOf(unfiltered, idx);
+        Arrays.sort(result, KeyFrequencyPair.KeyFrequencyPairComparator);
+        return result;
+    }
 
         /* persistent fns */
 
@@ -247,6 +326,9 @@ public final class PersistentDB implements WritableDB {
             final Object[] vs1 = new Object[vs.length];
             System.arraycopy(vs, 0, vs1, 0, vs.length);
             vs1[idx] = val;
+            if (aggregator != null) {
+                aggregator.change(key);
+            }
             IPersistentMap updatedUniqueIndices = updateIndices(id, new int[] { key }, new Object[] { val });
             return new PersistentDB(identity,
                                     updatedUniqueIndices,
@@ -342,13 +424,20 @@ public final class PersistentDB implements WritableDB {
 
         // remove id from dropped key's db/ids
         final int[] removedKeys = IntegerSets.difference(prevKeys, keys);
-        for (int i=0; i < removedKeys.length; i++) {
-            aggregator.remove(removedKeys[i], id);
-        }
-        // add new keys to index aggr for id
-        final int[] newKeys = IntegerSets.difference(keys, prevKeys);
-        for (int i=0; i < newKeys.length; i++) {
-            aggregator.add(newKeys[i], id);
+        if (aggregator != null) {
+            for (int i=0; i < removedKeys.length; i++) {
+                aggregator.remove(removedKeys[i], id);
+            }
+            // add new keys to index aggr for id
+            final int[] newKeys = IntegerSets.difference(keys, prevKeys);
+            for (int i=0; i < newKeys.length; i++) {
+                aggregator.add(newKeys[i], id);
+            }
+            // the values of the others may have changed, which their :db/ranks need to see
+            final int[] keptKeys = IntegerSets.intersection(keys, prevKeys);
+            for (int i=0; i < keptKeys.length; i++) {
+                aggregator.change(keptKeys[i]);
+            }
         }
 
         Keyword dbKey = null;
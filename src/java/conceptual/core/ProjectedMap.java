@@ -37,11 +37,17 @@ public class ProjectedMap extends DBMap {
     public Object[] getValues() {
         Object[] result = new Object[mat_ks.length];
         for (int i=0; i < result.length; i++) {
-            result[i] = db.getValue(id, mat_ks[i]);
+            result[i] = valueAt(i);
         }
         return result;
     }
 
+    @Override
+    protected Object valueAt(final int idx) {
+        // the projected keys are a subset of the concept's
+        return getValue(mat_ks[idx]);
+    }
+
     /* Map */
 
     /** Returns true if this map contains a mapping for the specified key. */
@@ -208,14 +214,4 @@ public class ProjectedMap extends DBMap {
             throw new UnsupportedOperationException("DBMap is read-only, so remove on it's LazyInterator is not supported.");
         }
     }
-
-    public IPersistentMap asPersistentMap() {
-        IPersistentMap result = PersistentHashMap.create();
-        Keyword[] keywords = getKeysAsKeywords();
-        Object[] values = getValues();
-        for (int i=0; i < keywords.length; i++) {
-            result = result.assoc(keywords[i], values[i]);
-        }
-        return result;
-    }
 }
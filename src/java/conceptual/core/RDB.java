@@ -4,6 +4,7 @@ import clojure.lang.IPersistentMap;
 import clojure.lang.Keyword;
 import conceptual.util.IntArrayPool;
 import conceptual.util.IntegerSets;
+import conceptual.util.PackedIntSet;
 import conceptual.util.ZipTools;
 
 import java.io.*;
@@ -73,6 +74,8 @@ public final class RDB implements DB, WritableDB {
             for (int j=0; j < tmp.vs.length; j++) {
                 if (tmp.vs[j] != null && tmp.vs[j] instanceof int[]) {
                     result += ((int[]) tmp.vs[j]).length;
+                } else if (tmp.vs[j] instanceof PackedIntSet) {
+                    result += ((PackedIntSet) tmp.vs[j]).count();
                 } else {
                     result++;
                 }
@@ -134,9 +137,21 @@ public final class RDB implements DB, WritableDB {
         return cs[id].ks;
     }
 
+    /**
+     * NB. packed values are decoded, so the result is a copy when `id` has
+     * any, see {@link #pack}.
+     */
     @Override
     public Object[] getValues(final int id) {
-        return cs[id].vs;
+        final Object[] vs = cs[id].vs;
+        for (int i=0; i < vs.length; i++) {
+            if (vs[i] instanceof PackedIntSet) {
+                final Object[] result = vs.clone();
+                for (int j=i; j < result.length; j++) result[j] = PackedIntSet.unpack(result[j]);
+                return result;
+            }
+        }
+        return vs;
     }
 
     @Override
@@ -152,17 +167,50 @@ public final class RDB implements DB, WritableDB {
 
     @Override
     public Object getValueByIdx(final int id, final int idx) {
-        return idx > -1 ? cs[id].vs[idx] : null;
+        return idx > -1 ? PackedIntSet.unpack(cs[id].vs[idx]) : null;
     }
 
     @Override
     public Object getValue(final int id, final int key) {
+        return PackedIntSet.unpack(getStoredValue(id, key));
+    }
+
+    /**
+     * Same as {@link #getValue} but packed values are returned as their
+     * {@link PackedIntSet} rather than decoded.
+     */
+    public Object getStoredValue(final int id, final int key) {
         final C c = cs[id];
         final int[] keys = c.ks;
         final int idx = IntegerSets.binarySearch(keys, key, 0, keys.length);
         return idx > -1 ? c.vs[idx] : null;
     }
 
+    /**
+     * Returns a new RDB with every strictly ascending int array value of at
+     * least `minLength` ints, ie. `:db/ids` and most to-many relations,
+     * stored as a {@link PackedIntSet}. Values which are not ascending keep
+     * their order and are left as is. Packed values are decoded on read by
+     * {@link #getValue}, use {@link #getStoredValue} to read them packed.
+     */
+    public RDB pack(final int minLength) {
+        final C[] packed = Arrays.copyOf(cs, cs.length);
+        for (int i=0; i <= maxId; i++) {
+            final C c = cs[i];
+            if (c == null) continue;
+            Object[] vs = null;
+            for (int j=0; j < c.vs.length; j++) {
+                final Object v = c.vs[j];
+                if (v instanceof int[] && ((int[]) v).length >= minLength && PackedIntSet.isPackable((int[]) v)) {
+                    if (vs == null) vs = c.vs.clone();
+                    vs[j] = PackedIntSet.of((int[]) v);
+                }
+            }
+            if (vs != null) packed[i] = new C(c.ks, vs);
+        }
+        return new RDB(identity, uniqueIndices, packed, maxId, intArrayPool);
+    }
+
     @Override
     public Keyword getKeywordByIdx(final int id, final int idx) {
         Keyword result = null;
@@ -532,11 +580,14 @@ public final class RDB implements DB, WritableDB {
     @Override
     public WritableDB update(final IndexAggregator aggregator, final int id, final int key, final Object val) {
         final int idx = getKeyIdx(id, key);
-        final Object[] vs = getValues(id);
+        final Object[] vs = cs[id].vs;
         if (idx > 0) { // should not change id
             final Object[] vs1 = new Object[vs.length];
             System.arraycopy(vs, 0, vs1, 0, vs.length);
             vs1[idx] = val;
+            if (aggregator != null) {
+                aggregator.change(key);
+            }
             cs[id] = new C(cs[id].ks, vs1);
             IPersistentMap updatedUniqueIndices = updateIndices(id, new int[] { key }, new Object[] { val });
             return new RDB(identity,
@@ -583,7 +634,7 @@ public final class RDB implements DB, WritableDB {
     public WritableDB update(final IndexAggregator aggregator, final int id,
                              final int[] keys, final Object[] vals) {
         final int[] prevKeys = getKeys(id);
-        final Object[] prevVals = getValues(id);
+        final Object[] prevVals = cs[id].vs;
         final int[] ks = IntegerSets.union(prevKeys, keys);
         Keyword dbKey = null;
         final Object[] vs = new Object[ks.length];
@@ -619,13 +670,20 @@ public final class RDB implements DB, WritableDB {
 
         // remove id from dropped key's db/ids
         final int[] removedKeys = IntegerSets.difference(prevKeys, keys);
-        for (int i=0; i < removedKeys.length; i++) {
-            aggregator.remove(removedKeys[i], id);
-        }
-        // add new keys to index aggr for id
-        final int[] newKeys = IntegerSets.difference(keys, prevKeys);
-        for (int i=0; i < newKeys.length; i++) {
-            aggregator.add(newKeys[i], id);
+        if (aggregator != null) {
+            for (int i=0; i < removedKeys.length; i++) {
+                aggregator.remove(removedKeys[i], id);
+            }
+            // add new keys to index aggr for id
+            final int[] newKeys = IntegerSets.difference(keys, prevKeys);
+            for (int i=0; i < newKeys.length; i++) {
+                aggregator.add(newKeys[i], id);
+            }
+            // the values of the others may have changed, which their :db/ranks need to see
+            final int[] keptKeys = IntegerSets.intersection(keys, prevKeys);
+            for (int i=0; i < keptKeys.length; i++) {
+                aggregator.change(keptKeys[i]);
+            }
         }
 
         Keyword dbKey = null;
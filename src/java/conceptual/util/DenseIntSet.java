@@ -0,0 +1,162 @@
+package conceptual.util;
+
+import clojure.lang.IFn;
+import clojure.lang.ISeq;
+import clojure.lang.RT;
+import clojure.lang.Reduced;
+
+import java.util.Arrays;
+
+/**
+ * An {@link IntSet} backed by a bitset over `[0, max]`. Instances are
+ * immutable, the set operations return new instances.
+ */
+public final class DenseIntSet implements IntSet {
+
+    private final long[] words;
+    private final int cardinality;
+
+    DenseIntSet(final long[] words, final int cardinality) {
+        this.words = words;
+        this.cardinality = cardinality;
+    }
+
+    DenseIntSet(final long[] words) {
+        this(words, cardinality(words));
+    }
+
+    /**
+     * Returns a bitset of the sorted, non-negative int set `sortedSet`.
+     */
+    public static DenseIntSet of(final int[] sortedSet) {
+        if (sortedSet.length == 0) return new DenseIntSet(new long[0], 0);
+        final long[] words = new long[(sortedSet[sortedSet.length - 1] >>> 6) + 1];
+        for (int x : sortedSet) words[x >>> 6] |= 1L << x;
+        return new DenseIntSet(words, sortedSet.length);
+    }
+
+    private static int cardinality(final long[] words) {
+        int count = 0;
+        for (long word : words) count += Long.bitCount(word);
+        return count;
+    }
+
+    @Override
+    public int count() {
+        return cardinality;
+    }
+
+    @Override
+    public boolean contains(final int x) {
+        final int w = x >>> 6;
+        return x >= 0 && w < words.length && (words[w] & (1L << x)) != 0;
+    }
+
+    @Override
+    public int max() {
+        for (int w = words.length - 1; w >= 0; w--) {
+            if (words[w] != 0) return (w << 6) + 63 - Long.numberOfLeadingZeros(words[w]);
+        }
+        return -1;
+    }
+
+    @Override
+    public int[] toIntArray() {
+        final int[] result = new int[cardinality];
+        int idx = 0;
+        for (int w = 0; w < words.length; w++) {
+            long word = words[w];
+            while (word != 0) {
+                result[idx++] = (w << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public IntCursor cursor() {
+        return IntCursor.of(words, cardinality);
+    }
+
+    @Override
+    public ISeq seq() {
+        return cardinality == 0 ? null : RT.seq(toIntArray());
+    }
+
+    @Override
+    public Object reduce(final IFn f, Object init) {
+        for (int w = 0; w < words.length; w++) {
+            long word = words[w];
+            while (word != 0) {
+                init = f.invoke(init, (w << 6) + Long.numberOfTrailingZeros(word));
+                if (RT.isReduced(init)) return ((Reduced) init).deref();
+                word &= word - 1;
+            }
+        }
+        return init;
+    }
+
+    DenseIntSet and(final DenseIntSet other) {
+        final long[] result = new long[Math.min(words.length, other.words.length)];
+        for (int w = 0; w < result.length; w++) result[w] = words[w] & other.words[w];
+        return new DenseIntSet(result);
+    }
+
+    int andCount(final DenseIntSet other) {
+        final int n = Math.min(words.length, other.words.length);
+        int count = 0;
+        for (int w = 0; w < n; w++) count += Long.bitCount(words[w] & other.words[w]);
+        return count;
+    }
+
+    DenseIntSet or(final DenseIntSet other) {
+        final long[] shorter = words.length <= other.words.length ? words : other.words;
+        final long[] result = (words.length <= other.words.length ? other.words : words).clone();
+        for (int w = 0; w < shorter.length; w++) result[w] |= shorter[w];
+        return new DenseIntSet(result);
+    }
+
+    DenseIntSet andNot(final DenseIntSet other) {
+        final long[] result = words.clone();
+        final int n = Math.min(words.length, other.words.length);
+        for (int w = 0; w < n; w++) result[w] &= ~other.words[w];
+        return new DenseIntSet(result);
+    }
+
+    /**
+     * Returns a copy of this set with the non-negative sorted ints `xs` added.
+     */
+    DenseIntSet with(final int[] xs) {
+        final int needed = xs.length == 0 ? 0 : (xs[xs.length - 1] >>> 6) + 1;
+        final long[] result = Arrays.copyOf(words, Math.max(words.length, needed));
+        for (int x : xs) result[x >>> 6] |= 1L << x;
+        return new DenseIntSet(result);
+    }
+
+    /**
+     * Returns a copy of this set with the sorted ints `xs` removed.
+     */
+    DenseIntSet without(final int[] xs) {
+        final long[] result = words.clone();
+        for (int x : xs) {
+            if (x >= 0 && (x >>> 6) < result.length) result[x >>> 6] &= ~(1L << x);
+        }
+        return new DenseIntSet(result);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        return IntSet.equals(this, o);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(toIntArray());
+    }
+
+    @Override
+    public String toString() {
+        return "#DenseIntSet" + Arrays.toString(toIntArray());
+    }
+}
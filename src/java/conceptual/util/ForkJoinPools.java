@@ -0,0 +1,31 @@
+package conceptual.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Shared fork-join pools by parallelism, so callers choosing a parallelism
+ * per request don't create a pool each time. The parallelism comes from
+ * request data so it is clamped to the available processors, which bounds
+ * both the number of pools and their threads. The common pool is used when
+ * its parallelism matches.
+ */
+public final class ForkJoinPools {
+
+    private static final ConcurrentHashMap<Integer, ForkJoinPool> POOLS = new ConcurrentHashMap<>();
+
+    private ForkJoinPools() {}
+
+    /**
+     * Returns `parallelism` clamped to between 1 and the available processors.
+     */
+    public static int parallelism(final int parallelism) {
+        return Math.max(1, Math.min(parallelism, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public static ForkJoinPool get(final int parallelism) {
+        final int n = parallelism(parallelism);
+        if (n == ForkJoinPool.getCommonPoolParallelism()) return ForkJoinPool.commonPool();
+        return POOLS.computeIfAbsent(n, ForkJoinPool::new);
+    }
+}
@@ -0,0 +1,369 @@
+package conceptual.util;
+
+import java.util.Arrays;
+
+/**
+ * A forward only cursor over an ascending set of ints. Cursors compose into
+ * set expressions, {@link #and}, {@link #or} and {@link #andNot}, which are
+ * evaluated as a streaming merge of their inputs so that only the final
+ * result needs to be materialized, see {@link #toIntArray}.
+ *
+ * A new cursor is unpositioned, {@link #next} or {@link #advance} must be
+ * called before {@link #value}. Both return {@link #EXHAUSTED} once the
+ * cursor has run out, so sets may not contain `Integer.MAX_VALUE`.
+ *
+ * Cursors are stateful and NOT thread safe.
+ */
+public abstract class IntCursor {
+
+    public static final int EXHAUSTED = Integer.MAX_VALUE;
+
+    static final int UNPOSITIONED = Integer.MIN_VALUE;
+
+    /**
+     * Returns the current value, only defined after {@link #next} or
+     * {@link #advance} has been called.
+     */
+    public abstract int value();
+
+    /**
+     * Moves to the next value and returns it, or {@link #EXHAUSTED}.
+     */
+    public abstract int next();
+
+    /**
+     * Moves to the first value greater than or equal to `target` and returns
+     * it, or {@link #EXHAUSTED}. Cursors never move backwards: if the current
+     * value is already at or past `target` it is returned as is.
+     */
+    public abstract int advance(int target);
+
+    /**
+     * An upper bound on the number of values this cursor will produce, used to
+     * order the inputs of {@link #and}.
+     */
+    public abstract long cost();
+
+    /**
+     * Drains this cursor into a sorted int array.
+     */
+    public int[] toIntArray() {
+        final IntArrayList ans = new IntArrayList((int) Math.min(cost(), 1024));
+        for (int x = next(); x != EXHAUSTED; x = next()) ans.add(x);
+        return ans.toIntArray();
+    }
+
+    /**
+     * Drains this cursor returning the number of values it produced.
+     */
+    public int count() {
+        int count = 0;
+        for (int x = next(); x != EXHAUSTED; x = next()) count++;
+        return count;
+    }
+
+    public static IntCursor of(final int[] sortedSet) {
+        return new ArrayCursor(sortedSet == null ? IntegerSets.EMPTY : sortedSet);
+    }
+
+    public static IntCursor of(final IntSet set) {
+        return set == null ? of(IntegerSets.EMPTY) : set.cursor();
+    }
+
+    static IntCursor of(final long[] words, final int cardinality) {
+        return new BitSetCursor(words, cardinality);
+    }
+
+    /**
+     * Returns a cursor over the intersection of `cursors`. The cheapest
+     * cursor leads and the others are advanced to it (leapfrogging).
+     */
+    public static IntCursor and(final IntCursor... cursors) {
+        if (cursors.length == 1) return cursors[0];
+        return new AndCursor(cursors);
+    }
+
+    public static IntCursor or(final IntCursor... cursors) {
+        if (cursors.length == 1) return cursors[0];
+        return new OrCursor(cursors);
+    }
+
+    /**
+     * Returns a cursor over the values of `include` which are not in `exclude`.
+     */
+    public static IntCursor andNot(final IntCursor include, final IntCursor exclude) {
+        return new AndNotCursor(include, exclude);
+    }
+
+    private static final class ArrayCursor extends IntCursor {
+        private final int[] set;
+        private int idx = -1;
+
+        ArrayCursor(final int[] set) {
+            this.set = set;
+        }
+
+        @Override
+        public int value() {
+            if (idx < 0) return UNPOSITIONED;
+            return idx < set.length ? set[idx] : EXHAUSTED;
+        }
+
+        @Override
+        public int next() {
+            if (idx < set.length) idx++;
+            return value();
+        }
+
+        @Override
+        public int advance(final int target) {
+            if (idx >= 0 && (idx >= set.length || set[idx] >= target)) return value();
+            idx = IntegerSets.gallop(set, Math.max(idx, 0), target);
+            return value();
+        }
+
+        @Override
+        public long cost() {
+            return set.length;
+        }
+
+        @Override
+        public int count() {
+            final int remaining = set.length - Math.max(idx + 1, 0);
+            idx = set.length;
+            return Math.max(remaining, 0);
+        }
+    }
+
+    private static final class BitSetCursor extends IntCursor {
+        private final long[] words;
+        private final int cardinality;
+        private int current = UNPOSITIONED;
+
+        BitSetCursor(final long[] words, final int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        private int nextSetBit(final int from) {
+            int w = from >>> 6;
+            if (w >= words.length) return EXHAUSTED;
+            long word = words[w] & (-1L << from);
+            while (word == 0) {
+                if (++w == words.length) return EXHAUSTED;
+                word = words[w];
+            }
+            return (w << 6) + Long.numberOfTrailingZeros(word);
+        }
+
+        @Override
+        public int value() {
+            return current;
+        }
+
+        @Override
+        public int next() {
+            if (current == EXHAUSTED) return current;
+            return current = nextSetBit(current == UNPOSITIONED ? 0 : current + 1);
+        }
+
+        @Override
+        public int advance(final int target) {
+            if (current != UNPOSITIONED && current >= target) return current;
+            return current = nextSetBit(Math.max(0, Math.max(target, current == UNPOSITIONED ? 0 : current + 1)));
+        }
+
+        @Override
+        public long cost() {
+            return cardinality;
+        }
+
+        @Override
+        public int count() {
+            if (current != UNPOSITIONED) return super.count();
+            current = EXHAUSTED;
+            return cardinality;
+        }
+    }
+
+    private static final class AndCursor extends IntCursor {
+        private final IntCursor lead;
+        private final IntCursor[] others;
+        private int current = UNPOSITIONED;
+
+        AndCursor(final IntCursor[] cursors) {
+            final IntCursor[] xs = cursors.clone();
+            Arrays.sort(xs, (a, b) -> Long.compare(a.cost(), b.cost()));
+            this.lead = xs[0];
+            this.others = Arrays.copyOfRange(xs, 1, xs.length);
+        }
+
+        private int align(int target) {
+            outer:
+            while (target != EXHAUSTED) {
+                for (IntCursor other : others) {
+                    final int x = other.advance(target);
+                    if (x > target) {
+                        target = lead.advance(x);
+                        continue outer;
+                    }
+                }
+                return current = target;
+            }
+            return current = EXHAUSTED;
+        }
+
+        @Override
+        public int value() {
+            return current;
+        }
+
+        @Override
+        public int next() {
+            return align(lead.next());
+        }
+
+        @Override
+        public int advance(final int target) {
+            if (current != UNPOSITIONED && current >= target) return current;
+            return align(lead.advance(target));
+        }
+
+        @Override
+        public long cost() {
+            return lead.cost();
+        }
+    }
+
+    /**
+     * Keeps the unexhausted inputs in a min-heap ordered by their current value.
+     */
+    private static final class OrCursor extends IntCursor {
+        private final IntCursor[] heap;
+        private int size;
+        private boolean started = false;
+        private int current = UNPOSITIONED;
+        private final long cost;
+
+        OrCursor(final IntCursor[] cursors) {
+            this.heap = cursors.clone();
+            this.size = heap.length;
+            long c = 0;
+            for (IntCursor cursor : cursors) c += cursor.cost();
+            this.cost = c;
+        }
+
+        private void heapify() {
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                if (heap[i].value() != EXHAUSTED) heap[n++] = heap[i];
+            }
+            size = n;
+            for (int i = (size >>> 1) - 1; i >= 0; i--) siftDown(i);
+        }
+
+        private void siftDown(int i) {
+            final IntCursor x = heap[i];
+            final int v = x.value();
+            int child;
+            while ((child = (i << 1) + 1) < size) {
+                if (child + 1 < size && heap[child + 1].value() < heap[child].value()) child++;
+                if (v <= heap[child].value()) break;
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = x;
+        }
+
+        /**
+         * Advances the top of the heap to `target`, or to its next value, and
+         * restores the heap.
+         */
+        private void moveTop(final boolean advance, final int target) {
+            final IntCursor top = heap[0];
+            final int x = advance ? top.advance(target) : top.next();
+            if (x == EXHAUSTED) {
+                heap[0] = heap[--size];
+            }
+            if (size > 0) siftDown(0);
+        }
+
+        private int top() {
+            return current = size == 0 ? EXHAUSTED : heap[0].value();
+        }
+
+        @Override
+        public int value() {
+            return current;
+        }
+
+        @Override
+        public int next() {
+            if (!started) {
+                started = true;
+                for (int i = 0; i < size; i++) heap[i].next();
+                heapify();
+                return top();
+            }
+            if (current == EXHAUSTED) return current;
+            final int previous = current;
+            while (size > 0 && heap[0].value() == previous) moveTop(false, 0);
+            return top();
+        }
+
+        @Override
+        public int advance(final int target) {
+            if (!started) {
+                started = true;
+                for (int i = 0; i < size; i++) heap[i].advance(target);
+                heapify();
+                return top();
+            }
+            if (current != UNPOSITIONED && current >= target) return current;
+            while (size > 0 && heap[0].value() < target) moveTop(true, target);
+            return top();
+        }
+
+        @Override
+        public long cost() {
+            return cost;
+        }
+    }
+
+    private static final class AndNotCursor extends IntCursor {
+        private final IntCursor include;
+        private final IntCursor exclude;
+        private int current = UNPOSITIONED;
+
+        AndNotCursor(final IntCursor include, final IntCursor exclude) {
+            this.include = include;
+            this.exclude = exclude;
+        }
+
+        private int skipExcluded(int x) {
+            while (x != EXHAUSTED && exclude.advance(x) == x) x = include.next();
+            return current = x;
+        }
+
+        @Override
+        public int value() {
+            return current;
+        }
+
+        @Override
+        public int next() {
+            return skipExcluded(include.next());
+        }
+
+        @Override
+        public int advance(final int target) {
+            if (current != UNPOSITIONED && current >= target) return current;
+            return skipExcluded(include.advance(target));
+        }
+
+        @Override
+        public long cost() {
+            return include.cost();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package conceptual.util;
+
+import clojure.lang.Counted;
+import clojure.lang.IReduceInit;
+import clojure.lang.Seqable;
+
+/**
+ * A set of non-repeating ints with two representations: {@link SortedIntSet}
+ * wraps a sorted int array and {@link DenseIntSet} is a bitset. A bitset
+ * costs one bit per id up to its largest member whereas the array costs 32
+ * bits per member, so sets holding more than 1/32 of their id range are
+ * smaller, and their set algebra word parallel, as bitsets. {@link #of}
+ * picks the representation by density.
+ *
+ * The static operations below accept either representation on either side.
+ * Results are left in whichever form the operation naturally produces:
+ * intersecting with or subtracting from an array yields an array, while
+ * combining bitsets yields a bitset unless the result became sparse.
+ */
+public interface IntSet extends Counted, Seqable, IReduceInit {
+
+    /**
+     * A set is dense when its bitset would be no larger than its sorted array.
+     */
+    int DENSITY_FACTOR = 32;
+
+    boolean contains(int x);
+
+    /**
+     * Returns the largest member or -1 if empty.
+     */
+    int max();
+
+    /**
+     * Returns the members as a sorted int array. NB. the array may be shared
+     * with a {@link SortedIntSet} and must not be modified.
+     */
+    int[] toIntArray();
+
+    /**
+     * Returns a new {@link IntCursor} over the members.
+     */
+    IntCursor cursor();
+
+    default boolean isEmpty() {
+        return count() == 0;
+    }
+
+    static boolean isDense(final int count, final int max) {
+        return max >= 0 && (long) count * DENSITY_FACTOR >= (long) max + 1;
+    }
+
+    /**
+     * Returns `sortedSet` as a {@link DenseIntSet} when dense, otherwise wrapped
+     * as a {@link SortedIntSet}. Negative ids are never dense.
+     */
+    static IntSet of(final int[] sortedSet) {
+        if (null == sortedSet || 0 == sortedSet.length) return SortedIntSet.EMPTY;
+        if (sortedSet[0] >= 0 && isDense(sortedSet.length, sortedSet[sortedSet.length - 1])) {
+            return DenseIntSet.of(sortedSet);
+        }
+        return new SortedIntSet(sortedSet);
+    }
+
+    /**
+     * Switches `set` to the other representation if that one is now cheaper.
+     */
+    static IntSet optimize(final IntSet set) {
+        final boolean dense = isDense(set.count(), set.max());
+        if (set instanceof DenseIntSet && !dense) return new SortedIntSet(set.toIntArray());
+        if (set instanceof SortedIntSet && dense && ((SortedIntSet) set).min() >= 0) return DenseIntSet.of(set.toIntArray());
+        return set;
+    }
+
+    static IntSet intersection(final IntSet a, final IntSet b) {
+        if (a.isEmpty() || b.isEmpty()) return SortedIntSet.EMPTY;
+        if (a instanceof DenseIntSet && b instanceof DenseIntSet) {
+            return optimize(((DenseIntSet) a).and((DenseIntSet) b));
+        } else if (a instanceof DenseIntSet) {
+            return ((SortedIntSet) b).retainAll(a);
+        } else if (b instanceof DenseIntSet) {
+            return ((SortedIntSet) a).retainAll(b);
+        }
+        return new SortedIntSet(IntegerSets.getIntersection(a.toIntArray(), b.toIntArray()));
+    }
+
+    /**
+     * Returns the size of the intersection of `a` and `b` without
+     * materializing it. Two bitsets are counted word by word with
+     * `Long.bitCount`, which the JIT compiles to popcount instructions.
+     */
+    static int intersectionCount(final IntSet a, final IntSet b) {
+        if (a.isEmpty() || b.isEmpty()) return 0;
+        if (a instanceof DenseIntSet && b instanceof DenseIntSet) {
+            return ((DenseIntSet) a).andCount((DenseIntSet) b);
+        } else if (a instanceof DenseIntSet) {
+            return ((SortedIntSet) b).countIn(a);
+        } else if (b instanceof DenseIntSet) {
+            return ((SortedIntSet) a).countIn(b);
+        }
+        return IntegerSets.getIntersectionCount(a.toIntArray(), b.toIntArray());
+    }
+
+    static int differenceCount(final IntSet a, final IntSet b) {
+        return a.count() - intersectionCount(a, b);
+    }
+
+    static IntSet union(final IntSet a, final IntSet b) {
+        if (a.isEmpty()) return b;
+        if (b.isEmpty()) return a;
+        if (a instanceof DenseIntSet && b instanceof DenseIntSet) {
+            return ((DenseIntSet) a).or((DenseIntSet) b);
+        } else if (a instanceof DenseIntSet && ((SortedIntSet) b).min() >= 0) {
+            return ((DenseIntSet) a).with(b.toIntArray());
+        } else if (b instanceof DenseIntSet && ((SortedIntSet) a).min() >= 0) {
+            return ((DenseIntSet) b).with(a.toIntArray());
+        }
+        return of(IntegerSets.getUnion(a.toIntArray(), b.toIntArray()));
+    }
+
+    /**
+     * k-way union of sorted int sets. When the inputs are non-negative and
+     * could be dense the bits are set directly, skipping the sweep back into
+     * an array, otherwise this is {@link IntegerSets#union2}.
+     */
+    static IntSet unionOf(final int[][] sets) {
+        long n = 0;
+        int max = -1;
+        for (int[] set : sets) {
+            if (null == set || 0 == set.length) continue;
+            if (set[0] < 0) return of(IntegerSets.union2(sets));
+            n += set.length;
+            max = Math.max(max, set[set.length - 1]);
+        }
+        if (max < 0) return SortedIntSet.EMPTY;
+        if (n * DENSITY_FACTOR < (long) max + 1) return of(IntegerSets.union2(sets));
+        final long[] words = new long[(max >>> 6) + 1];
+        for (int[] set : sets) {
+            if (null == set) continue;
+            for (int x : set) words[x >>> 6] |= 1L << x;
+        }
+        return optimize(new DenseIntSet(words));
+    }
+
+    static IntSet difference(final IntSet a, final IntSet b) {
+        if (a.isEmpty()) return SortedIntSet.EMPTY;
+        if (b.isEmpty()) return a;
+        if (a instanceof DenseIntSet && b instanceof DenseIntSet) {
+            return optimize(((DenseIntSet) a).andNot((DenseIntSet) b));
+        } else if (a instanceof DenseIntSet) {
+            return optimize(((DenseIntSet) a).without(b.toIntArray()));
+        } else if (b instanceof DenseIntSet) {
+            return ((SortedIntSet) a).removeAll(b);
+        }
+        return new SortedIntSet(IntegerSets.getDifference(a.toIntArray(), b.toIntArray()));
+    }
+
+    static boolean equals(final IntSet a, final Object o) {
+        if (a == o) return true;
+        if (!(o instanceof IntSet)) return false;
+        final IntSet b = (IntSet) o;
+        return a.count() == b.count() && IntegerSets.equals(a.toIntArray(), b.toIntArray());
+    }
+}
@@ -9,6 +9,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.TreeSet;
 import java.util.Iterator;
 import java.util.List;
@@ -22,8 +23,36 @@ public final class IntegerSets {
 
     public static int[] EMPTY = new int[0];
 
+    /**
+     * True when the `jdk.incubator.vector` module is present at runtime and the
+     * `conceptual.vector` system property is not set to `false`. When true the
+     * pairwise intersection, union, difference and intersection count use
+     * {@link IntegerSetsVector} otherwise the scalar loops below are used.
+     */
+    public final static boolean VECTORIZED = detectVectorSupport();
+
+    /**
+     * Sets shorter than this (the larger of the two inputs) stay on the scalar
+     * path since there is not enough to skip to pay for the vector setup.
+     */
+    public final static int VECTOR_THRESHOLD = Integer.getInteger("conceptual.vector.threshold", 64);
+
     private IntegerSets() {}
 
+    private static boolean detectVectorSupport() {
+        if ("false".equals(System.getProperty("conceptual.vector"))) return false;
+        if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) return false;
+        try {
+            return IntegerSetsVector.LANES > 1;
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    private static boolean useVector(final int[] setA, final int[] setB) {
+        return VECTORIZED && Math.max(setA.length, setB.length) >= VECTOR_THRESHOLD;
+    }
+
     /**
      * <p>getIntersectionAndUnionCount</p>
      *
@@ -71,6 +100,11 @@ public final class IntegerSets {
     /**
      * <p>getIntersection</p>
      *
+     * Three or more sets are intersected in a single pass. Each element of
+     * the smallest set is galloped for in the remaining sets (smallest first)
+     * from where the previous probe left off, so the larger sets are never
+     * scanned linearly and no intermediate arrays are allocated.
+     *
      * @param sets an array of int.
      * @return an array of int.
      */
@@ -85,14 +119,169 @@ public final class IntegerSets {
                 smallestLength = sets[i].length;
             }
         }
-        int[] result = sets[smallestIndex];
-        for (int i=0; i < sets.length; i++) {
-            if (i != smallestIndex) {
-                result = getIntersection(result, sets[i]);
+        if (sets.length == 1) return sets[0];
+        if (sets.length == 2) return getIntersection(sets[smallestIndex], sets[1 - smallestIndex]);
+        if (smallestLength == 0) return EMPTY;
+
+        final int[] smallest = sets[smallestIndex];
+        final int[][] others = new int[sets.length - 1][];
+        for (int i=0, j=0; i < sets.length; i++) {
+            if (i != smallestIndex) others[j++] = sets[i];
+        }
+        Arrays.sort(others, ARRAY_LENGTH_COMPARATOR);
+
+        final int[] intersection = new int[smallestLength];
+        final int count = probe(smallest, others, intersection);
+        return count == intersection.length ? intersection : Arrays.copyOf(intersection, count);
+    }
+
+    /**
+     * Gallops for each element of `smallest` in `others`, which are sorted
+     * smallest first. Matches are written to `out` unless it is null.
+     * Returns the number of matches.
+     */
+    private static int probe(final int[] smallest, final int[][] others, final int[] out) {
+        final int[] cursors = new int[others.length];
+        int count = 0;
+        probe:
+        for (int i=0; i < smallest.length; i++) {
+            final int key = smallest[i];
+            for (int j=0; j < others.length; j++) {
+                final int[] other = others[j];
+                final int idx = gallop(other, cursors[j], key);
+                if (idx == other.length) break probe; // nothing left can match
+                cursors[j] = idx;
+                if (other[idx] != key) continue probe;
             }
-            if (result.length == 0) break;
+            if (out != null) out[count] = key;
+            count++;
         }
-        return result;
+        return count;
+    }
+
+    public final static int intersectionCount(final int[][] sets) {
+        return getIntersectionCount(sets);
+    }
+
+    /**
+     * <p>getIntersectionCount</p>
+     *
+     * The n-way counterpart of {@link #getIntersection(int[]...)} which
+     * counts the matches instead of collecting them.
+     *
+     * @param sets an array of int.
+     * @return the size of the intersection without materializing it.
+     */
+    public final static int getIntersectionCount(final int[]... sets) {
+        if (sets.length == 0 || sets[0] == null) { return 0; }
+        int smallestIndex = 0;
+        for (int i=1; i < sets.length; i++) {
+            if (sets[i] == null) { return 0; }
+            if (sets[i].length < sets[smallestIndex].length) smallestIndex = i;
+        }
+        if (sets.length == 1) return sets[0].length;
+        if (sets.length == 2) return getIntersectionCount(sets[0], sets[1]);
+        if (sets[smallestIndex].length == 0) return 0;
+
+        final int[][] others = new int[sets.length - 1][];
+        for (int i=0, j=0; i < sets.length; i++) {
+            if (i != smallestIndex) others[j++] = sets[i];
+        }
+        Arrays.sort(others, ARRAY_LENGTH_COMPARATOR);
+        return probe(sets[smallestIndex], others, null);
+    }
+
+    private final static Comparator<int[]> ARRAY_LENGTH_COMPARATOR =
+        (a, b) -> Integer.compare(a.length, b.length);
+
+    /**
+     * When the larger of two sets is at least this many times the size of the
+     * smaller one, intersection and difference gallop through the larger set
+     * instead of merging, O(m log(n/m)) rather than O(m + n).
+     */
+    public final static int GALLOP_RATIO = 32;
+
+    private static boolean useGallop(final int[] smaller, final int[] larger) {
+        return useGallop(smaller.length, larger.length);
+    }
+
+    private static boolean useGallop(final int smaller, final int larger) {
+        return larger / smaller >= GALLOP_RATIO;
+    }
+
+    /**
+     * Exponential (galloping) search. Returns the index of the first element in
+     * `set` at or after `from` which is greater than or equal to `key`, or
+     * `set.length` if there is none. The cost is logarithmic in the distance
+     * moved rather than in the size of the set, which makes repeated probes
+     * with increasing keys cheap.
+     *
+     * @param set sorted array of integers
+     * @param from position to start searching from
+     * @param key search for something equal or greater
+     * @return index satisfying the search criteria or set.length
+     */
+    public static int gallop(final int[] set, final int from, final int key) {
+        int lo = from;
+        int hi = from;
+        int step = 1;
+        while (hi < set.length && set[hi] < key) {
+            lo = hi + 1;
+            hi += step;
+            step <<= 1;
+        }
+        return binarySearchGreater(set, key, lo, Math.min(hi, set.length));
+    }
+
+    private static int[] gallopingIntersection(final int[] smaller, final int[] larger) {
+        final int[] intersection = new int[smaller.length];
+        int count = 0;
+        int j = 0;
+        for (int i=0; i < smaller.length; i++) {
+            j = gallop(larger, j, smaller[i]);
+            if (j == larger.length) break;
+            if (larger[j] == smaller[i]) intersection[count++] = smaller[i];
+        }
+        return count == intersection.length ? intersection : Arrays.copyOf(intersection, count);
+    }
+
+    private static int gallopingIntersectionCount(final int[] smaller, final int[] larger) {
+        int count = 0;
+        int j = 0;
+        for (int i=0; i < smaller.length; i++) {
+            j = gallop(larger, j, smaller[i]);
+            if (j == larger.length) break;
+            if (larger[j] == smaller[i]) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Difference for skewed sizes. When `setB` is the larger set each element
+     * of `setA` is galloped for in `setB`, otherwise each element of `setB` is
+     * galloped for in `setA` and the runs between them are copied in bulk.
+     */
+    private static int[] gallopingDifference(final int[] setA, final int[] setB) {
+        final int[] difference = new int[setA.length];
+        int count = 0;
+        if (setA.length <= setB.length) {
+            int j = 0;
+            for (int i=0; i < setA.length; i++) {
+                j = gallop(setB, j, setA[i]);
+                if (j == setB.length || setB[j] != setA[i]) difference[count++] = setA[i];
+            }
+        } else {
+            int i = 0;
+            for (int j=0; j < setB.length && i < setA.length; j++) {
+                final int idx = gallop(setA, i, setB[j]);
+                System.arraycopy(setA, i, difference, count, idx - i);
+                count += idx - i;
+                i = (idx < setA.length && setA[idx] == setB[j]) ? idx + 1 : idx;
+            }
+            System.arraycopy(setA, i, difference, count, setA.length - i);
+            count += setA.length - i;
+        }
+        return count == difference.length ? difference : Arrays.copyOf(difference, count);
     }
 
     public final static int[] union(final int[][] sets) {
@@ -106,11 +295,7 @@ public final class IntegerSets {
      * @return an array of int.
      */
     public final static int[] getUnion(final int[]... sets) {
-        int[] result = new int[] {};
-        for (int i=0; i < sets.length; i++) {
-            result = getUnion(result, sets[i]);
-        }
-        return result;
+        return union2(sets, 0);
     }
 
     public final static int[] intersection(int[] setA, int[] setB) {
@@ -156,6 +341,9 @@ public final class IntegerSets {
         int[] intersection = EMPTY;
         int i=0, j=0;
         if (setA != null && setA.length > 0 && setB != null && setB.length > 0) {
+            if (setA.length <= setB.length && useGallop(setA, setB)) return gallopingIntersection(setA, setB);
+            if (setB.length < setA.length && useGallop(setB, setA)) return gallopingIntersection(setB, setA);
+            if (useVector(setA, setB)) return IntegerSetsVector.intersection(setA, setB);
             int count = 0;
             if (setA.length <= setB.length) {
                 intersection = new int[setA.length];
@@ -184,6 +372,56 @@ public final class IntegerSets {
         return intersection;
     }
 
+    public final static int intersectionCount(final int[] setA, final int[] setB) {
+        return getIntersectionCount(setA, setB);
+    }
+
+    /**
+     * <p>getIntersectionCount</p>
+     *
+     * @param setA an array of int.
+     * @param setB an array of int.
+     * @return the size of the intersection without materializing it.
+     */
+    public final static int getIntersectionCount(final int[] setA, final int[] setB) {
+        if (setA == null || setA.length == 0 || setB == null || setB.length == 0) return 0;
+        if (setA.length <= setB.length && useGallop(setA, setB)) return gallopingIntersectionCount(setA, setB);
+        if (setB.length < setA.length && useGallop(setB, setA)) return gallopingIntersectionCount(setB, setA);
+        if (useVector(setA, setB)) return IntegerSetsVector.intersectionCount(setA, setB);
+        int i=0, j=0, count=0;
+        while (i < setA.length && j < setB.length) {
+            if (setA[i] < setB[j]) {
+                i++;
+            } else if (setA[i] > setB[j]) {
+                j++;
+            } else {
+                count++;
+                i++;
+                j++;
+            }
+        }
+        return count;
+    }
+
+    public final static int differenceCount(final int[] setA, final int[] setB) {
+        return getDifferenceCount(setA, setB);
+    }
+
+    /**
+     * <p>getDifferenceCount</p>
+     *
+     * |A - B| is |A| - |A & B| so this takes the same merge, gallop or
+     * vector path as {@link #getIntersectionCount(int[], int[])}.
+     *
+     * @param setA an array of int.
+     * @param setB an array of int.
+     * @return the size of the difference without materializing it.
+     */
+    public final static int getDifferenceCount(final int[] setA, final int[] setB) {
+        if (setA == null) return 0;
+        return setA.length - getIntersectionCount(setA, setB);
+    }
+
     public final static int[] union(final int[] setA, final int[] setB) {
         return getUnion(setA, setB);
     }
@@ -217,28 +455,137 @@ public final class IntegerSets {
     }
 
     /**
-     * Returns the sum of all lengths.
+     * A dense bitmap sweep is used for k-way unions when the id range spanned
+     * by the inputs is at most this many times their combined size.
+     */
+    public final static int DENSE_UNION_FACTOR = 8;
+
+    /**
+     * k-way union of `sets[start..]`. A first pass over the inputs gathers the
+     * combined size and id range and checks that every input is a sorted set.
+     * Dense inputs (or unsorted inputs with a small range) are unioned by
+     * setting bits in a bitmap and sweeping it into an exactly sized result.
+     * Sparse sorted inputs are merged with a min-heap of cursors into a single
+     * output buffer, which is only trimmed if there were duplicates. Sparse
+     * unsorted inputs fall back to sorting the concatenation.
      */
-    private static int sumLengths(final int[][] sets) {
-        int ans = 0;
-        for (int i=0; i < sets.length; i++) {
-            if (null != sets[i]) {
-                ans += sets[i].length;
+    private final static int[] union2(final int[][] sets, int start) {
+        if (null == sets || start >= sets.length) { return EMPTY; }
+        long n = 0;
+        int k = 0;
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        boolean sorted = true;
+        for (int i=start; i < sets.length; i++) {
+            final int[] set = sets[i];
+            if (null == set || 0 == set.length) continue;
+            n += set.length;
+            k++;
+            for (int j=0; j < set.length; j++) {
+                final int x = set[j];
+                if (x < min) min = x;
+                if (x > max) max = x;
+                if (j > 0 && set[j - 1] >= x) sorted = false;
             }
         }
-        return ans;
+        if (0 == k) { return EMPTY; }
+        if (n > Integer.MAX_VALUE) throw new IllegalStateException("Union would exceed Integer.MAX_VALUE");
+
+        final long range = (long) max - (long) min + 1;
+        if (range <= n * DENSE_UNION_FACTOR) {
+            return bitmapUnion(sets, start, min, (int) range);
+        } else if (!sorted) {
+            final IntArrayList ial = new IntArrayList((int) n);
+            for (int i=start; i < sets.length; i++) {
+                ial.addAll(sets[i]);
+            }
+            return ial.toSortedIntSet();
+        } else {
+            return heapUnion(sets, start, k, (int) n);
+        }
     }
 
-
-  private final static int[] union2(final int[][] sets, int start) {
-        if (null == sets || 0 == sets.length) { return EMPTY; }
-        final int n = sumLengths(sets); // trying to prevent allocations along the way
-        IntArrayList ial = new IntArrayList(n);
+    private static int[] bitmapUnion(final int[][] sets, final int start, final int min, final int range) {
+        final long[] words = new long[(range + 63) >>> 6];
         for (int i=start; i < sets.length; i++) {
-            ial.addAll(sets[i]);
+            final int[] set = sets[i];
+            if (null == set) continue;
+            for (int x : set) {
+                final int bit = x - min;
+                words[bit >>> 6] |= 1L << bit;
+            }
         }
-        return ial.toSortedIntSet();
-  }
+        int count = 0;
+        for (long word : words) count += Long.bitCount(word);
+        final int[] union = new int[count];
+        int idx = 0;
+        for (int w=0; w < words.length; w++) {
+            long word = words[w];
+            final int base = min + (w << 6);
+            while (word != 0) {
+                union[idx++] = base + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+        }
+        return union;
+    }
+
+    private static int[] heapUnion(final int[][] sets, final int start, final int k, final int n) {
+        final int[][] xs = new int[k][];
+        for (int i=start, j=0; i < sets.length; i++) {
+            if (null != sets[i] && 0 != sets[i].length) xs[j++] = sets[i];
+        }
+        if (1 == k) { return Arrays.copyOf(xs[0], xs[0].length); }
+        if (2 == k) { return getUnion(xs[0], xs[1]); }
+        // the heap holds the current head of each set alongside the set's index
+        final int[] heads = new int[k];
+        final int[] owners = new int[k];
+        final int[] cursors = new int[k];
+        for (int i=0; i < k; i++) {
+            heads[i] = xs[i][0];
+            owners[i] = i;
+        }
+        for (int i=(k >>> 1) - 1; i >= 0; i--) siftDown(heads, owners, k, i);
+
+        final int[] union = new int[n];
+        int count = 0;
+        int size = k;
+        int last = 0;
+        while (size > 0) {
+            final int x = heads[0];
+            if (0 == count || last != x) {
+                union[count++] = x;
+                last = x;
+            }
+            final int owner = owners[0];
+            final int[] set = xs[owner];
+            final int cursor = ++cursors[owner];
+            if (cursor == set.length) {
+                size--;
+                heads[0] = heads[size];
+                owners[0] = owners[size];
+            } else {
+                heads[0] = set[cursor];
+            }
+            siftDown(heads, owners, size, 0);
+        }
+        return count == n ? union : Arrays.copyOf(union, count);
+    }
+
+    private static void siftDown(final int[] heads, final int[] owners, final int size, int i) {
+        final int x = heads[i];
+        final int owner = owners[i];
+        int child;
+        while ((child = (i << 1) + 1) < size) {
+            if (child + 1 < size && heads[child + 1] < heads[child]) child++;
+            if (x <= heads[child]) break;
+            heads[i] = heads[child];
+            owners[i] = owners[child];
+            i = child;
+        }
+        heads[i] = x;
+        owners[i] = owner;
+    }
 
     /**
      * Returns the set union of all the input sorted int sets.
@@ -260,6 +607,8 @@ public final class IntegerSets {
     public final static int[] difference2(final int[] setA, final int[] setB) {
         if ((null == setA) || (0 == setA.length)) { return EMPTY; }
         if ((null == setB) || (0 == setB.length)) { return setA; }
+        if (useGallop(Math.min(setA.length, setB.length), Math.max(setA.length, setB.length))) { return gallopingDifference(setA, setB); }
+        if (useVector(setA, setB)) { return IntegerSetsVector.difference(setA, setB); }
 
         int[] difference = EMPTY;
         int i=0, j=0;
@@ -314,6 +663,7 @@ public final class IntegerSets {
         int[] sets = EMPTY;
         int i=0, j=0;
         if (setA != null && setA.length > 0 && setB != null && setB.length > 0) {
+            if (useVector(setA, setB)) return IntegerSetsVector.union(setA, setB);
             int count = 0;
             sets = new int[setA.length + setB.length];
             while (true) {
@@ -397,6 +747,8 @@ public final class IntegerSets {
         int[] difference = EMPTY;
         int i=0, j=0;
         if (setA != null && setA.length > 0 && setB != null && setB.length > 0) {
+            if (useGallop(Math.min(setA.length, setB.length), Math.max(setA.length, setB.length))) return gallopingDifference(setA, setB);
+            if (useVector(setA, setB)) return IntegerSetsVector.difference(setA, setB);
             int count = 0;
             difference = new int[setA.length];
             while (true) {
@@ -0,0 +1,140 @@
+package conceptual.util;
+
+import java.util.Arrays;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector API (JEP 338) implementations of the sorted int set operations in
+ * {@link IntegerSets}. All of them are built on a single primitive,
+ * {@link #runLength}, which uses a vector compare to measure how many
+ * consecutive elements of one set are smaller than the head of the other set.
+ * Since the sets are sorted the compare mask is always a prefix, so its
+ * true count is the length of the run which can then be skipped or copied
+ * in bulk.
+ *
+ * This class must only be loaded when the `jdk.incubator.vector` module is
+ * available, callers should go through {@link IntegerSets} which checks
+ * {@link IntegerSets#VECTORIZED} and falls back to the scalar loops.
+ *
+ * All methods assume non-null, non-empty, sorted and duplicate free inputs.
+ */
+final class IntegerSetsVector {
+
+    static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    static final int LANES = SPECIES.length();
+
+    private IntegerSetsVector() {}
+
+    /**
+     * Returns the number of consecutive elements in `set` starting at `from`
+     * which are less than `key`.
+     */
+    static int runLength(final int[] set, final int from, final int key) {
+        int i = from;
+        final int bound = set.length - LANES;
+        while (i <= bound) {
+            final int n = IntVector.fromArray(SPECIES, set, i).lt(key).trueCount();
+            i += n;
+            if (n < LANES) return i - from;
+        }
+        while (i < set.length && set[i] < key) i++;
+        return i - from;
+    }
+
+    static int[] intersection(final int[] setA, final int[] setB) {
+        final int[] intersection = new int[Math.min(setA.length, setB.length)];
+        int i = 0, j = 0, count = 0;
+        while (i < setA.length && j < setB.length) {
+            final int a = setA[i];
+            final int b = setB[j];
+            if (a < b) {
+                i += runLength(setA, i, b);
+            } else if (a > b) {
+                j += runLength(setB, j, a);
+            } else {
+                intersection[count++] = a;
+                i++;
+                j++;
+            }
+        }
+        return count == intersection.length ? intersection : Arrays.copyOf(intersection, count);
+    }
+
+    static int intersectionCount(final int[] setA, final int[] setB) {
+        int i = 0, j = 0, count = 0;
+        while (i < setA.length && j < setB.length) {
+            final int a = setA[i];
+            final int b = setB[j];
+            if (a < b) {
+                i += runLength(setA, i, b);
+            } else if (a > b) {
+                j += runLength(setB, j, a);
+            } else {
+                count++;
+                i++;
+                j++;
+            }
+        }
+        return count;
+    }
+
+    static int[] union(final int[] setA, final int[] setB) {
+        final int[] union = new int[setA.length + setB.length];
+        int i = 0, j = 0, count = 0;
+        while (i < setA.length && j < setB.length) {
+            final int a = setA[i];
+            final int b = setB[j];
+            if (a < b) {
+                final int n = runLength(setA, i, b);
+                System.arraycopy(setA, i, union, count, n);
+                i += n;
+                count += n;
+            } else if (a > b) {
+                final int n = runLength(setB, j, a);
+                System.arraycopy(setB, j, union, count, n);
+                j += n;
+                count += n;
+            } else {
+                union[count++] = a;
+                i++;
+                j++;
+            }
+        }
+        if (i < setA.length) {
+            System.arraycopy(setA, i, union, count, setA.length - i);
+            count += setA.length - i;
+        } else if (j < setB.length) {
+            System.arraycopy(setB, j, union, count, setB.length - j);
+            count += setB.length - j;
+        }
+        return count == union.length ? union : Arrays.copyOf(union, count);
+    }
+
+    static int[] difference(final int[] setA, final int[] setB) {
+        final int[] difference = new int[setA.length];
+        int i = 0, j = 0, count = 0;
+        while (i < setA.length && j < setB.length) {
+            final int a = setA[i];
+            final int b = setB[j];
+            if (a < b) {
+                final int n = runLength(setA, i, b);
+                System.arraycopy(setA, i, difference, count, n);
+                i += n;
+                count += n;
+            } else if (a > b) {
+                j += runLength(setB, j, a);
+            } else {
+                i++;
+                j++;
+            }
+        }
+        if (i < setA.length) {
+            System.arraycopy(setA, i, difference, count, setA.length - i);
+            count += setA.length - i;
+        }
+        return count == difference.length ? difference : Arrays.copyOf(difference, count);
+    }
+}
@@ -0,0 +1,44 @@
+package conceptual.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded map evicting the least recently used entry once full. All access
+ * is synchronized so one instance may be shared between threads.
+ */
+public final class LruCache<K, V> {
+
+    private final int capacity;
+    private final LinkedHashMap<K, V> map;
+
+    public LruCache(final int capacity) {
+        this.capacity = capacity;
+        this.map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
+                return size() > LruCache.this.capacity;
+            }
+        };
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public synchronized V get(final K key) {
+        return map.get(key);
+    }
+
+    public synchronized void put(final K key, final V value) {
+        map.put(key, value);
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    public synchronized void clear() {
+        map.clear();
+    }
+}
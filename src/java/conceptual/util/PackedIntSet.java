@@ -0,0 +1,412 @@
+package conceptual.util;
+
+import clojure.lang.Counted;
+import clojure.lang.IFn;
+import clojure.lang.IReduceInit;
+import clojure.lang.ISeq;
+import clojure.lang.RT;
+import clojure.lang.Reduced;
+import clojure.lang.Seqable;
+
+import java.util.Arrays;
+
+/**
+ * An immutable, compressed, strictly ascending int set for long posting
+ * lists such as `:db/ids` and to-many relations.
+ *
+ * The members are split into blocks of {@link #BLOCK_SIZE}. Each block keeps
+ * its first and last member uncompressed, these double as skip pointers, and
+ * the gaps between consecutive members (minus one, so runs cost nothing) are
+ * bit-packed with the width chosen per block. Gaps which do not fit in the
+ * chosen width are patched in from an exception list (PFOR), so a few large
+ * gaps do not widen the whole block.
+ *
+ * Blocks are only decoded when iterated, see {@link #cursor}, and the set
+ * operations below skip over blocks whose ranges cannot match.
+ */
+public final class PackedIntSet implements Counted, Seqable, IReduceInit {
+
+    public static final int BLOCK_SIZE = 128;
+
+    /**
+     * Bits charged for an exception when picking a block's width: its
+     * position in the block and its high bits.
+     */
+    private static final int EXCEPTION_BITS = 8 + 32;
+
+    public static final PackedIntSet EMPTY = of(IntegerSets.EMPTY);
+
+    private final int count;
+    private final int[] firsts;
+    private final int[] lasts;
+    private final byte[] widths;
+    private final int[] offsets;        // word offset of each block in data
+    private final int[] exceptionStarts; // blocks + 1 entries
+    private final byte[] exceptionPositions;
+    private final int[] exceptionHighs;
+    private final long[] data;
+
+    private PackedIntSet(final int count, final int[] firsts, final int[] lasts, final byte[] widths,
+                         final int[] offsets, final int[] exceptionStarts, final byte[] exceptionPositions,
+                         final int[] exceptionHighs, final long[] data) {
+        this.count = count;
+        this.firsts = firsts;
+        this.lasts = lasts;
+        this.widths = widths;
+        this.offsets = offsets;
+        this.exceptionStarts = exceptionStarts;
+        this.exceptionPositions = exceptionPositions;
+        this.exceptionHighs = exceptionHighs;
+        this.data = data;
+    }
+
+    /**
+     * Returns true when `xs` is strictly ascending and can be packed.
+     */
+    public static boolean isPackable(final int[] xs) {
+        if (xs == null) return false;
+        for (int i = 1; i < xs.length; i++) {
+            if (xs[i - 1] >= xs[i]) return false;
+        }
+        return true;
+    }
+
+    private static int width(final int gap) {
+        return 32 - Integer.numberOfLeadingZeros(gap);
+    }
+
+    public static PackedIntSet of(final int[] sortedSet) {
+        if (!isPackable(sortedSet)) {
+            throw new IllegalArgumentException("PackedIntSet requires a strictly ascending int array");
+        }
+        final int blocks = (sortedSet.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        final int[] firsts = new int[blocks];
+        final int[] lasts = new int[blocks];
+        final byte[] widths = new byte[blocks];
+        final int[] offsets = new int[blocks];
+        final int[] exceptionStarts = new int[blocks + 1];
+        final IntArrayList exceptionPositions = new IntArrayList();
+        final IntArrayList exceptionHighs = new IntArrayList();
+        long[] data = new long[Math.max(1, sortedSet.length / 4)];
+        int words = 0;
+
+        final int[] gaps = new int[BLOCK_SIZE];
+        final int[] histogram = new int[33];
+        for (int b = 0; b < blocks; b++) {
+            final int start = b * BLOCK_SIZE;
+            final int n = Math.min(BLOCK_SIZE, sortedSet.length - start);
+            firsts[b] = sortedSet[start];
+            lasts[b] = sortedSet[start + n - 1];
+
+            Arrays.fill(histogram, 0);
+            for (int i = 1; i < n; i++) {
+                // int overflow is fine, the gap is read back as unsigned
+                gaps[i] = sortedSet[start + i] - sortedSet[start + i - 1] - 1;
+                histogram[width(gaps[i])]++;
+            }
+
+            // choose the width minimizing packed bits plus exception bits
+            int w = 0;
+            long best = Long.MAX_VALUE;
+            int exceptions = n - 1;
+            for (int candidate = 0; candidate <= 32; candidate++) {
+                exceptions -= histogram[candidate];
+                final long cost = (long) (n - 1) * candidate + (long) exceptions * EXCEPTION_BITS;
+                if (cost < best) {
+                    best = cost;
+                    w = candidate;
+                }
+            }
+            widths[b] = (byte) w;
+            offsets[b] = words;
+
+            final int needed = words + (int) (((long) (n - 1) * w + 63) >>> 6) + 1;
+            if (needed > data.length) data = Arrays.copyOf(data, Math.max(needed, data.length + (data.length >> 1)));
+
+            final long mask = (1L << w) - 1;
+            long bitPos = (long) words << 6;
+            for (int i = 1; i < n; i++) {
+                final long gap = gaps[i] & 0xffffffffL;
+                if (w < 32 && (gap >>> w) != 0) {
+                    exceptionPositions.add(i);
+                    exceptionHighs.add((int) (gap >>> w));
+                }
+                if (w > 0) {
+                    final int word = (int) (bitPos >>> 6);
+                    final int shift = (int) (bitPos & 63);
+                    final long low = gap & mask;
+                    data[word] |= low << shift;
+                    if (shift + w > 64) data[word + 1] |= low >>> (64 - shift);
+                    bitPos += w;
+                }
+            }
+            words = (int) ((bitPos + 63) >>> 6);
+            exceptionStarts[b + 1] = exceptionPositions.size();
+        }
+
+        final int[] positions = exceptionPositions.toIntArray();
+        final byte[] bytePositions = new byte[positions.length];
+        for (int i = 0; i < positions.length; i++) bytePositions[i] = (byte) positions[i];
+        return new PackedIntSet(sortedSet.length, firsts, lasts, widths, offsets, exceptionStarts,
+                                bytePositions, exceptionHighs.toIntArray(), Arrays.copyOf(data, words));
+    }
+
+    /**
+     * Returns `x` decoded to an int array if it is a {@link PackedIntSet},
+     * otherwise `x` as is. This keeps packed values transparent to callers
+     * expecting `int[]`.
+     */
+    public static Object unpack(final Object x) {
+        return x instanceof PackedIntSet ? ((PackedIntSet) x).toIntArray() : x;
+    }
+
+    private int blockLength(final int b) {
+        return b == firsts.length - 1 ? count - b * BLOCK_SIZE : BLOCK_SIZE;
+    }
+
+    /**
+     * Decodes block `b` into `out` starting at `off`, returns its length.
+     */
+    private int decodeBlock(final int b, final int[] out, final int off) {
+        final int n = blockLength(b);
+        final int w = widths[b];
+        out[off] = firsts[b];
+        if (w == 0) {
+            for (int i = 1; i < n; i++) out[off + i] = 0;
+        } else {
+            final long mask = (1L << w) - 1;
+            long bitPos = (long) offsets[b] << 6;
+            for (int i = 1; i < n; i++) {
+                final int word = (int) (bitPos >>> 6);
+                final int shift = (int) (bitPos & 63);
+                long v = data[word] >>> shift;
+                if (shift + w > 64) v |= data[word + 1] << (64 - shift);
+                out[off + i] = (int) (v & mask);
+                bitPos += w;
+            }
+        }
+        for (int e = exceptionStarts[b]; e < exceptionStarts[b + 1]; e++) {
+            out[off + exceptionPositions[e]] |= exceptionHighs[e] << w;
+        }
+        for (int i = 1; i < n; i++) out[off + i] += out[off + i - 1] + 1;
+        return n;
+    }
+
+    /**
+     * Returns the index of the first block at or after `from` whose last
+     * member is greater than or equal to `x`, or the number of blocks.
+     */
+    private int findBlock(final int from, final int x) {
+        return IntegerSets.gallop(lasts, from, x);
+    }
+
+    @Override
+    public int count() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public int blockCount() {
+        return firsts.length;
+    }
+
+    /**
+     * Returns the approximate size of the compressed representation.
+     */
+    public long sizeInBytes() {
+        return 4L * (firsts.length + lasts.length + offsets.length + exceptionStarts.length + exceptionHighs.length)
+            + widths.length + exceptionPositions.length + 8L * data.length;
+    }
+
+    public boolean contains(final int x) {
+        final int b = findBlock(0, x);
+        if (b == firsts.length || firsts[b] > x) return false;
+        final int[] block = new int[BLOCK_SIZE];
+        final int n = decodeBlock(b, block, 0);
+        return Arrays.binarySearch(block, 0, n, x) >= 0;
+    }
+
+    public int[] toIntArray() {
+        final int[] result = new int[count];
+        for (int b = 0, off = 0; b < firsts.length; b++) off += decodeBlock(b, result, off);
+        return result;
+    }
+
+    public IntCursor cursor() {
+        return new Cursor();
+    }
+
+    @Override
+    public ISeq seq() {
+        return count == 0 ? null : RT.seq(toIntArray());
+    }
+
+    @Override
+    public Object reduce(final IFn f, Object init) {
+        final int[] block = new int[BLOCK_SIZE];
+        for (int b = 0; b < firsts.length; b++) {
+            final int n = decodeBlock(b, block, 0);
+            for (int i = 0; i < n; i++) {
+                init = f.invoke(init, block[i]);
+                if (RT.isReduced(init)) return ((Reduced) init).deref();
+            }
+        }
+        return init;
+    }
+
+    /**
+     * Intersects two packed sets block by block. Only pairs of blocks whose
+     * ranges overlap are decoded, and each block is decoded at most once.
+     */
+    public static int[] intersection(final PackedIntSet a, final PackedIntSet b) {
+        final int[] result = new int[Math.min(a.count, b.count)];
+        final int count = intersect(a, b, result);
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    public static int intersectionCount(final PackedIntSet a, final PackedIntSet b) {
+        return intersect(a, b, null);
+    }
+
+    private static int intersect(final PackedIntSet a, final PackedIntSet b, final int[] out) {
+        final int[] blockA = new int[BLOCK_SIZE];
+        final int[] blockB = new int[BLOCK_SIZE];
+        int decodedA = -1, decodedB = -1, nA = 0, nB = 0;
+        int i = 0, j = 0, count = 0;
+        while (i < a.firsts.length && j < b.firsts.length) {
+            if (a.lasts[i] < b.firsts[j]) {
+                i = a.findBlock(i + 1, b.firsts[j]);
+            } else if (b.lasts[j] < a.firsts[i]) {
+                j = b.findBlock(j + 1, a.firsts[i]);
+            } else {
+                if (decodedA != i) { nA = a.decodeBlock(i, blockA, 0); decodedA = i; }
+                if (decodedB != j) { nB = b.decodeBlock(j, blockB, 0); decodedB = j; }
+                int x = 0, y = 0;
+                while (x < nA && y < nB) {
+                    if (blockA[x] < blockB[y]) {
+                        x++;
+                    } else if (blockA[x] > blockB[y]) {
+                        y++;
+                    } else {
+                        if (out != null) out[count] = blockA[x];
+                        count++;
+                        x++;
+                        y++;
+                    }
+                }
+                final int lastA = a.lasts[i];
+                final int lastB = b.lasts[j];
+                if (lastA <= lastB) i++;
+                if (lastB <= lastA) j++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Intersects a packed set with a sorted int array, blocks with no
+     * members of `set` in their range are skipped without decoding.
+     */
+    public static int[] intersection(final PackedIntSet a, final int[] set) {
+        if (set == null || set.length == 0 || a.count == 0) return IntegerSets.EMPTY;
+        final int[] result = new int[Math.min(a.count, set.length)];
+        final int[] block = new int[BLOCK_SIZE];
+        int count = 0, j = 0, b = a.findBlock(0, set[0]);
+        while (b < a.firsts.length && j < set.length) {
+            j = IntegerSets.gallop(set, j, a.firsts[b]);
+            if (j == set.length) break;
+            if (set[j] > a.lasts[b]) {
+                b = a.findBlock(b + 1, set[j]);
+                continue;
+            }
+            final int n = a.decodeBlock(b, block, 0);
+            int x = 0;
+            while (x < n && j < set.length && set[j] <= a.lasts[b]) {
+                if (block[x] < set[j]) {
+                    x++;
+                } else if (block[x] > set[j]) {
+                    j++;
+                } else {
+                    result[count++] = block[x];
+                    x++;
+                    j++;
+                }
+            }
+            b++;
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Decodes one block at a time, {@link #advance} skips whole blocks via
+     * their last members.
+     */
+    private final class Cursor extends IntCursor {
+        private final int[] block = new int[BLOCK_SIZE];
+        private int b = -1;
+        private int n = 0;
+        private int idx = 0;
+        private int current = UNPOSITIONED;
+
+        private int load(final int next) {
+            b = next;
+            if (b >= firsts.length) {
+                n = 0;
+                return current = EXHAUSTED;
+            }
+            n = decodeBlock(b, block, 0);
+            idx = 0;
+            return current = block[0];
+        }
+
+        @Override
+        public int value() {
+            return current;
+        }
+
+        @Override
+        public int next() {
+            if (current == EXHAUSTED) return current;
+            if (++idx < n) return current = block[idx];
+            return load(b + 1);
+        }
+
+        @Override
+        public int advance(final int target) {
+            if (current != UNPOSITIONED && current >= target) return current;
+            if (current == EXHAUSTED) return current;
+            if (b < 0 || lasts[b] < target) {
+                if (load(findBlock(Math.max(b + 1, 0), target)) == EXHAUSTED) return current;
+            }
+            final int i = Arrays.binarySearch(block, idx, n, target);
+            idx = i >= 0 ? i : -i - 1;
+            return current = block[idx];
+        }
+
+        @Override
+        public long cost() {
+            return count;
+        }
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (!(o instanceof PackedIntSet)) return false;
+        final PackedIntSet other = (PackedIntSet) o;
+        return count == other.count && Arrays.equals(toIntArray(), other.toIntArray());
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(toIntArray());
+    }
+
+    @Override
+    public String toString() {
+        return "#PackedIntSet" + Arrays.toString(toIntArray());
+    }
+}
@@ -0,0 +1,133 @@
+package conceptual.util;
+
+import clojure.lang.Util;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Dense ranks of values in the order of Clojure's `compare`: nil is 0, the
+ * least value 1 and values comparing equal share a rank. Longs and doubles
+ * are ranked by a primitive sort of their distinct values, strings and
+ * everything else by sorting their distinct values once, ie. a precomputed
+ * collation key.
+ *
+ * A rank index holds the rank of every concept's value of a property at the
+ * concept's id, see `:db/ranks`.
+ */
+public final class Ranks {
+
+    private static final Comparator<Object> COMPARE = Util::compare;
+
+    private Ranks() {}
+
+    private static boolean isLong(final Object x) {
+        return x instanceof Long || x instanceof Integer || x instanceof Short || x instanceof Byte;
+    }
+
+    private static boolean isDouble(final Object x) {
+        return x instanceof Double || x instanceof Float;
+    }
+
+    /**
+     * Returns the dense rank of each value, nil is 0 and the least non-nil
+     * value is 1. Values comparing equal have the same rank.
+     */
+    public static int[] of(final Object[] values) {
+        boolean longs = true;
+        boolean doubles = true;
+        boolean strings = true;
+        for (Object v : values) {
+            if (v == null) continue;
+            longs &= isLong(v);
+            doubles &= isDouble(v);
+            strings &= v instanceof String;
+        }
+        if (longs || doubles) {
+            final long[] keys = new long[values.length];
+            for (int i = 0; i < values.length; i++) {
+                final Object v = values[i];
+                if (v != null) keys[i] = longs ? ((Number) v).longValue() : sortableBits(((Number) v).doubleValue());
+            }
+            return primitiveRanks(values, keys);
+        }
+        if (strings) return stringRanks(values);
+        return objectRanks(values);
+    }
+
+    /**
+     * Maps doubles to longs in the same order, -0.0 and 0.0 compare equal as
+     * with `compare`.
+     */
+    private static long sortableBits(final double x) {
+        final long bits = Double.doubleToLongBits(x == 0.0 ? 0.0 : x);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+    private static int[] primitiveRanks(final Object[] values, final long[] keys) {
+        long[] distinct = new long[values.length];
+        int m = 0;
+        for (int i = 0; i < values.length; i++) if (values[i] != null) distinct[m++] = keys[i];
+        Arrays.sort(distinct, 0, m);
+        m = dedupe(distinct, m);
+        final int[] ranks = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) ranks[i] = Arrays.binarySearch(distinct, 0, m, keys[i]) + 1;
+        }
+        return ranks;
+    }
+
+    private static int dedupe(final long[] xs, final int n) {
+        if (n == 0) return 0;
+        int m = 1;
+        for (int i = 1; i < n; i++) if (xs[i] != xs[m - 1]) xs[m++] = xs[i];
+        return m;
+    }
+
+    private static int[] stringRanks(final Object[] values) {
+        final HashMap<Object, Integer> ranks = new HashMap<>();
+        for (Object v : values) if (v != null) ranks.put(v, 0);
+        final String[] distinct = ranks.keySet().toArray(new String[0]);
+        Arrays.sort(distinct);
+        for (int i = 0; i < distinct.length; i++) ranks.put(distinct[i], i + 1);
+        final int[] ans = new int[values.length];
+        for (int i = 0; i < values.length; i++) if (values[i] != null) ans[i] = ranks.get(values[i]);
+        return ans;
+    }
+
+    private static int[] objectRanks(final Object[] values) {
+        Object[] distinct = new Object[values.length];
+        int m = 0;
+        for (Object v : values) if (v != null) distinct[m++] = v;
+        Arrays.sort(distinct, 0, m, COMPARE);
+        int d = m == 0 ? 0 : 1;
+        for (int i = 1; i < m; i++) if (Util.compare(distinct[i], distinct[d - 1]) != 0) distinct[d++] = distinct[i];
+        final int[] ans = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) ans[i] = Arrays.binarySearch(distinct, 0, d, values[i], COMPARE) + 1;
+        }
+        return ans;
+    }
+
+    /**
+     * Returns a rank index of `size` ids where `ranks[i]` is the rank of `ids[i]`.
+     */
+    public static int[] index(final int[] ids, final int[] ranks, final int size) {
+        final int[] ans = new int[size];
+        for (int i = 0; i < ids.length; i++) ans[ids[i]] = ranks[i];
+        return ans;
+    }
+
+    /**
+     * Returns the ranks of `ids` in `rankIndex`, ids past its end rank as nil.
+     */
+    public static int[] of(final int[] ids, final int[] rankIndex) {
+        final int[] ans = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            final int id = ids[i];
+            ans[i] = id < rankIndex.length ? rankIndex[id] : 0;
+        }
+        return ans;
+    }
+}
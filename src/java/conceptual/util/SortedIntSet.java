@@ -0,0 +1,115 @@
+package conceptual.util;
+
+import clojure.lang.IFn;
+import clojure.lang.ISeq;
+import clojure.lang.RT;
+import clojure.lang.Reduced;
+
+import java.util.Arrays;
+
+/**
+ * An {@link IntSet} backed by a sorted, duplicate free int array.
+ */
+public final class SortedIntSet implements IntSet {
+
+    public static final SortedIntSet EMPTY = new SortedIntSet(IntegerSets.EMPTY);
+
+    private final int[] ids;
+
+    public SortedIntSet(final int[] ids) {
+        this.ids = ids == null ? IntegerSets.EMPTY : ids;
+    }
+
+    @Override
+    public int count() {
+        return ids.length;
+    }
+
+    @Override
+    public boolean contains(final int x) {
+        return IntegerSets.binarySearch(ids, x, 0, ids.length) > -1;
+    }
+
+    public int min() {
+        return ids.length == 0 ? -1 : ids[0];
+    }
+
+    @Override
+    public int max() {
+        return ids.length == 0 ? -1 : ids[ids.length - 1];
+    }
+
+    @Override
+    public int[] toIntArray() {
+        return ids;
+    }
+
+    @Override
+    public IntCursor cursor() {
+        return IntCursor.of(ids);
+    }
+
+    @Override
+    public ISeq seq() {
+        return RT.seq(ids);
+    }
+
+    @Override
+    public Object reduce(final IFn f, Object init) {
+        for (int x : ids) {
+            init = f.invoke(init, x);
+            if (RT.isReduced(init)) return ((Reduced) init).deref();
+        }
+        return init;
+    }
+
+    /**
+     * Returns the members of this set that are also in `other`.
+     */
+    SortedIntSet retainAll(final IntSet other) {
+        final int[] result = new int[ids.length];
+        int count = 0;
+        for (int x : ids) {
+            if (other.contains(x)) result[count++] = x;
+        }
+        return count == ids.length ? this : new SortedIntSet(Arrays.copyOf(result, count));
+    }
+
+    /**
+     * Returns the number of members of this set that are also in `other`.
+     */
+    int countIn(final IntSet other) {
+        int count = 0;
+        for (int x : ids) {
+            if (other.contains(x)) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the members of this set that are not in `other`.
+     */
+    SortedIntSet removeAll(final IntSet other) {
+        final int[] result = new int[ids.length];
+        int count = 0;
+        for (int x : ids) {
+            if (!other.contains(x)) result[count++] = x;
+        }
+        return count == ids.length ? this : new SortedIntSet(Arrays.copyOf(result, count));
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        return IntSet.equals(this, o);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(ids);
+    }
+
+    @Override
+    public String toString() {
+        return "#SortedIntSet" + Arrays.toString(ids);
+    }
+}
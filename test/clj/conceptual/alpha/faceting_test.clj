@@ -1,10 +1,13 @@
 (ns conceptual.alpha.faceting-test
   (:require
    [conceptual.alpha.faceting :as faceting]
-   [clojure.test :refer [deftest]]
+   [conceptual.alpha.filter :as f]
+   [clojure.test :refer [deftest testing]]
    [conceptual.test.core :as test.core]
    [conceptual.core :as c]
-   [expectations.clojure.test :refer [expect use-fixtures]]))
+   [expectations.clojure.test :refer [expect use-fixtures]])
+  (:import
+   (clojure.lang ExceptionInfo)))
 
 
 (use-fixtures :each test.core/with-rdb)
@@ -18,3 +21,25 @@
         max-id (last all-interests)]
     (expect [501 1 502 3 503 2 505 1 506 1 507 3 509 1]
             (vec (faceting/to-many-relations-by-frequency key-id min-id max-id (c/ids :sf/interests))))))
+
+(deftest budget-test
+  (let [key-id (c/key->id :sf/interests)
+        ids (c/ids :sf/interests)]
+    (testing "partial counts once the budget is exceeded"
+      (let [budget (f/new-budget {:max-ids 0})]
+        (expect [] (vec (faceting/to-many-relations-by-frequency @c/*db* key-id 501 509 ids
+                                                                 {:budget budget :on-exceeded :partial})))
+        (expect true (.isExceeded budget))))
+
+    (testing "within budget"
+      (let [budget (f/new-budget {:max-ids 100})]
+        (expect [501 1 502 3 503 2 505 1 506 1 507 3 509 1]
+                (vec (faceting/to-many-relations-by-frequency @c/*db* key-id 501 509 ids {:budget budget})))
+        (expect false (.isExceeded budget))))
+
+    (testing "aborts by default"
+      (try
+        (faceting/to-many-relations-by-frequency @c/*db* key-id 501 509 ids {:budget (f/new-budget {:max-ids 0})})
+        (expect false "should have thrown")
+        (catch ExceptionInfo ex
+          (expect ::f/budget-exceeded (f/error-code ex)))))))
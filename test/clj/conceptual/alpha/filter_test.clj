@@ -6,8 +6,11 @@
    [conceptual.int-sets :as i]
    [clojure.spec.alpha :as s]
    [conceptual.alpha.filter :as f]
+   [conceptual.schema :as schema]
    [expectations.clojure.test :refer [expect]])
-  (:import (clojure.lang ExceptionInfo)))
+  (:import (clojure.lang ExceptionInfo Keyword)
+           (conceptual.alpha FieldFilter QueryBudget)
+           (conceptual.util ForkJoinPools)))
 
 (use-fixtures :each test.core/with-rdb)
 
@@ -486,6 +489,317 @@
               (eval-sexp '(or test/external-id test/nice?))))))
 
 
+(deftest dense-intermediates-test
+  (testing "or results may be bitsets internally but evaluate returns int arrays"
+    (let [all-ids (c/ids :sf/id)]
+      (expect int/1 (class (f/evaluate '(or test/tag? test/nice?) all-ids)))
+      (expect int/1 (class (f/evaluate '(and (or sf/crew? sf/team?) (not sf/human?)) all-ids)))
+      (expect (vec (i/difference (i/union (c/ids :sf/crew?) (c/ids :sf/team?))
+                                 (c/ids :sf/human?)))
+              (vec (f/evaluate '(and (or sf/crew? sf/team?) (not sf/human?)) all-ids))))))
+
+
+(deftest or-branches-test
+  (let [all-ids (c/ids :sf/id)
+        seen (atom [])
+        registry (-> (f/new-registry)
+                     (f/register-reducer! 'sf/rank (fn [_ctx {[_ rank] :filter/value} ids]
+                                                     (swap! seen conj (alength ^ints ids))
+                                                     (int-array (filter #(= rank (c/value :sf/rank %)) ids)))))]
+    (binding [f/*enable-index-scan* true]
+      (testing "branches run in parallel give the same result"
+        (let [sexp '(or sf/team? (= sf/rank "Captain") (= sf/rank "Major") (= sf/rank "Civilian"))]
+          (expect (vec (f/evaluate sexp all-ids))
+                  (vec (f/evaluate {::f/parallelism 4} (f/get-registry) sexp all-ids)))
+          (expect (vec (i/union (c/ids :sf/team?)
+                                (f/evaluate '(= sf/rank "Captain") all-ids)
+                                (f/evaluate '(= sf/rank "Major") all-ids)
+                                (f/evaluate '(= sf/rank "Civilian") all-ids)))
+                  (vec (f/evaluate {::f/parallelism 4} (f/get-registry) sexp all-ids))))))
+
+    (binding [f/*enable-index-scan* true
+              f/*enable-planner* false]
+      (testing "later branches only see the ids not matched yet"
+        (reset! seen [])
+        (expect (vec (i/union (c/ids :sf/crew?) (f/evaluate '(not (= sf/rank "Captain")) all-ids)))
+                (vec (f/evaluate {} registry '(or sf/crew? (not (= sf/rank "Captain"))) all-ids)))
+        (expect [(- (alength all-ids) (alength (c/ids :sf/crew?)))] @seen))
+
+      (testing "unless they may match ids they weren't given"
+        (reset! seen [])
+        (f/evaluate {} registry '(or sf/crew? (= sf/rank "Captain")) all-ids)
+        (expect [(alength all-ids)] @seen)
+
+        (let [sexp '(or sf/crew? (= sf/rank "Captain"))
+              sf-id (fn [x] (first (filter #(= x (c/value :sf/id %)) all-ids)))
+              riker (sf-id "riker")
+              uss-e (sf-id "uss-e")
+              non-crew (i/difference all-ids (c/ids :sf/crew?))]
+          (doseq [ids [(i/set [uss-e riker]) (i/conj non-crew riker)]]
+            ;; index scans in an `or` aren't confined to `ids`
+            (expect (vec (i/union (f/evaluate 'sf/crew? ids)
+                                  (f/evaluate '(or (= sf/rank "Captain")) ids)))
+                    (vec (f/evaluate sexp ids)))
+            (expect true (i/member? (sf-id "picard") (f/evaluate sexp ids))))))
+
+      (testing "a limit stops evaluating branches once enough ids matched"
+        (reset! seen [])
+        (let [ids (f/evaluate {::f/limit 2} registry '(or (= sf/rank "Captain") (= sf/rank "Commander")) all-ids)]
+          (expect 2 (alength ids))
+          (expect #{"Captain"} (set (map (partial c/value :sf/rank) ids)))
+          (expect 1 (count @seen))))
+
+      (testing "a limit on a trailing or still returns enough ids"
+        (let [ids (f/evaluate {::f/limit 3} registry
+                              '(and sf/crew? (or (= sf/rank "Captain") (= sf/rank "Commander"))) all-ids)]
+          (expect 3 (alength ids))
+          (expect true (every? #{"Captain" "Commander"} (map (partial c/value :sf/rank) ids))))))))
+
+(deftest budget-test
+  (binding [f/*enable-index-scan* true]
+    (let [sexp '(and test/tag? (= test/int 3456))
+          ids (test-db-ids)]
+      (testing "within budget the ids scanned are charged"
+        (let [budget (f/new-budget {:max-ids 100 :timeout-ms 60000})]
+          (expect #{:hello/dude} (eval-sexp {::f/budget budget} (f/get-registry) sexp))
+          (expect true (pos? (.getUsed budget QueryBudget/IDS)))))
+
+      (expect-error ::f/budget-exceeded
+                    (f/evaluate {::f/budget (f/new-budget {:max-ids 0})} (f/get-registry) sexp ids))
+
+      (expect-error ::f/deadline-exceeded
+                    (let [budget (f/new-budget {:timeout-ms 0})]
+                      (Thread/sleep 1)
+                      (f/evaluate {::f/budget budget} (f/get-registry) sexp ids)))
+
+      (expect-error ::f/cancelled
+                    (let [budget (f/new-budget {})]
+                      (.cancel budget)
+                      (f/evaluate {::f/budget budget} (f/get-registry) sexp ids))))))
+
+(deftest streaming-test
+  (testing "set expressions over fields, exists? and tags stream and match the set ops"
+    (let [all-ids (c/ids :sf/id)
+          crew (c/ids :sf/crew?)
+          team (c/ids :sf/team?)
+          android (c/ids :sf/android?)]
+      (expect (vec (i/intersection all-ids crew android))
+              (vec (f/evaluate '(and sf/crew? (= sf/android? true)) all-ids)))
+      (expect (vec (i/difference (i/intersection all-ids crew) android))
+              (vec (f/evaluate '(and (exists? sf/crew?) (= sf/android? false)) all-ids)))
+      (expect (vec (i/difference (i/intersection all-ids crew) android))
+              (vec (f/evaluate '(and sf/crew? (not= true sf/android?)) all-ids)))
+      (expect (vec (i/intersection all-ids (i/union (i/difference crew android) team)))
+              (vec (f/evaluate '(or (and sf/crew? (not sf/android?)) sf/team?) all-ids)))
+      (expect (vec (i/difference all-ids (i/union crew team)))
+              (vec (f/evaluate '(not (or sf/crew? sf/team?)) all-ids)))))
+
+  (testing "mixed with reducers"
+    (binding [f/*enable-index-scan* true]
+      (expect #{:hello/dude}
+              (eval-sexp '(and test/tag? (= test/int 3456) (exists? test/string))))
+      (expect #{:hello/world :hello/dude}
+              (eval-sexp '(or (= test/string "World") (and test/tag? (= test/int 3456))))))))
+
+
+(deftest count-test
+  (let [all-ids (c/ids :sf/id)]
+    (binding [f/*enable-index-scan* true]
+      (doseq [sexp '[sf/crew?
+                     (not sf/crew?)
+                     (and sf/crew? (not sf/android?))
+                     (or sf/crew? sf/team?)
+                     (and (or sf/crew? sf/team?) (not sf/human?))
+                     (not (= sf/rank "Captain"))
+                     (and sf/crew? (= sf/rank "Captain"))
+                     (or sf/team? (= sf/rank "Captain"))]]
+        (expect (alength (f/evaluate sexp all-ids)) (f/count sexp all-ids))))))
+
+
+(deftest plan-test
+  (binding [f/*enable-index-scan* true]
+    (testing "tags first then cheapest first"
+      (expect '(and test/tag? (= test/string "Friend") (= test/int 3456))
+              (s/unform ::f/sexp (f/plan (f/conform '(and (= test/int 3456)
+                                                           (= test/string "Friend")
+                                                           test/tag?))))))
+
+    (testing "nested ands are planned"
+      (expect '(or sf/team? (and sf/crew? (= sf/rank "Captain")))
+              (s/unform ::f/sexp (f/plan (f/conform '(or sf/team? (and (= sf/rank "Captain") sf/crew?)))))))
+
+    (testing "each clause is estimated once"
+      (let [calls (atom 0)
+            selectivity @#'f/selectivity]
+        (with-redefs [f/selectivity (fn [ctx sexp] (swap! calls inc) (selectivity ctx sexp))]
+          (f/plan (f/conform '(and (= sf/rank "Captain") (= sf/id "picard") (= sf/name "Riker")
+                                   (= test/int 3456) (= test/string "Friend")))))
+        (expect 5 @calls)))
+
+    (testing "planning doesn't change results"
+      (let [sexp '(and (= sf/rank "Captain") (not sf/android?) sf/crew?)
+            all-ids (c/ids :sf/id)]
+        (expect (vec (binding [f/*enable-planner* false] (f/evaluate sexp all-ids)))
+                (vec (f/evaluate sexp all-ids)))))))
+
+(deftest explain-test
+  (binding [f/*enable-index-scan* true]
+    (let [sexp '(and (= sf/rank "Captain") sf/crew? (not sf/android?))
+          all-ids (c/ids :sf/id)
+          {:keys [actual children]} (f/explain sexp all-ids)]
+      (expect (alength (f/evaluate sexp all-ids)) actual)
+      (expect '[sf/crew? (not sf/android?) (= sf/rank "Captain")] (mapv :sexp children))
+      (expect [true true false] (mapv :streamed? children))
+      (expect (f/count 'sf/crew? all-ids) (:actual (first children)))
+      (expect true (every? #(<= 0 (:estimate %) (alength all-ids)) children)))))
+
+(deftest and-short-circuit-test
+  (let [counter (volatile! 0)
+        registry (-> (f/new-registry)
+                     (f/register-reducer! 'sf/rank (fn [_ctx _filter-info ids]
+                                                     (vswap! counter inc)
+                                                     ids)))]
+    (testing "built-in clauses are skipped once no ids remain"
+      ;; the index scan would throw if it were run
+      (binding [f/*enable-index-scan* false]
+        (expect 0 (alength (f/evaluate '(and sf/crew? (not sf/crew?) (= sf/rank "Captain")) (c/ids :sf/id))))))
+    (f/evaluate registry '(and sf/crew? (not sf/crew?) (= sf/rank "Captain")) (c/ids :sf/id))
+    (testing "custom reducers are still called"
+      (expect 1 @counter))))
+
+(deftest field-filter-test
+  (testing "compiled comparisons agree with clojure's"
+    (let [values [1 (int 2) (short 3) 1.0 (float 1.5) 2.5 2N 3/2 1.0M]
+          ops {FieldFilter/EQ = FieldFilter/NOT_EQ not=
+               FieldFilter/LT < FieldFilter/LTE <=
+               FieldFilter/GT > FieldFilter/GTE >=}]
+      (doseq [x [2 1.5 2N 3/2]
+              [op op-fn] ops
+              v values]
+        (expect (op-fn v x) (.test (FieldFilter/compare :test/int 0 (int op) x) v)
+                (str (list op-fn v x))))))
+
+  (testing "equality of non numbers"
+    (doseq [x ["a" :a true #{1 2}]
+            v ["a" :a true false #{1 2} 1]]
+      (expect (= v x) (.test (FieldFilter/compare :test/int 0 FieldFilter/EQ x) v))))
+
+  (testing "set relations treat scalars as singletons"
+    (expect true (.test (FieldFilter/setRelation :test/int 0 FieldFilter/SUBSET #{1 2}) 1))
+    (expect true (.test (FieldFilter/setRelation :test/int 0 FieldFilter/SUBSET #{1 2}) [2 1 2]))
+    (expect false (.test (FieldFilter/setRelation :test/int 0 FieldFilter/SUPERSET #{1 2}) [1 3]))
+    (expect true (.test (FieldFilter/setRelation :test/int 0 FieldFilter/INTERSECTS #{1 2}) #{2 3}))
+    (expect true (.test (FieldFilter/contains :test/int 0 "a") ["b" "a"]))
+    (expect false (.test (FieldFilter/memberOf :test/int 0 #{"b"}) "a"))))
+
+(deftest parallel-scan-test
+  (let [ids (int-array (take (* 10 FieldFilter/MIN_CHUNK_SIZE) (cycle (c/ids :test/int))))
+        ^FieldFilter ff (FieldFilter/compare :test/int (c/key->id :test/int) FieldFilter/EQ 3456)
+        expected (vec (.scan ff (c/db) ids))]
+    (expect true (pos? (count expected)))
+    (doseq [parallelism [1 2 3 8 500]]
+      (expect expected (vec (.scan ff (c/db) ids (int parallelism))))))
+
+  (testing "pools are bounded by the available processors"
+    (let [n (.availableProcessors (Runtime/getRuntime))]
+      (expect n (ForkJoinPools/parallelism 500))
+      (expect 1 (ForkJoinPools/parallelism -1))
+      (expect true (identical? (ForkJoinPools/get n) (ForkJoinPools/get 500)))
+      (expect n (.getParallelism (ForkJoinPools/get 500)))))
+
+  (binding [f/*enable-index-scan* true]
+    (expect #{:hello/dude :hello/friend}
+            (eval-sexp {::f/parallelism 4} (f/get-registry) '(= test/int 3456)))))
+
+(deftest compile-test
+  (binding [f/*enable-index-scan* true]
+    (let [sexp '(and (= test/int 3456) (not (< 4000 test/int)) (or test/tag? (= test/string "Friend")))
+          compiled (f/compile (f/conform sexp))
+          [_ {[leaf] :list/sexp}] compiled
+          ^FieldFilter scan (get-in leaf [1 1 ::f/scan])]
+      (expect (c/key->id :test/int) (.getKey scan))
+      (expect true (.isValidFor scan (c/db)))
+      (expect true (identical? compiled (f/compile compiled)))
+      (expect (s/unform ::f/sexp (f/conform sexp)) (s/unform ::f/sexp compiled))
+      (expect (vec (f/evaluate-conformed (f/conform sexp) (c/ids :db/id)))
+              (vec (f/evaluate-conformed compiled (c/ids :db/id))))
+      (expect #{:hello/dude :hello/friend} (eval-sexp sexp))
+
+      (testing "compiled expressions are cached"
+        (expect true (identical? (f/compiled sexp) (f/compiled sexp)))))))
+
+(deftest result-cache-test
+  (binding [f/*enable-index-scan* true]
+    (let [cache (f/new-cache)
+          ctx {::f/cache cache}
+          ids (c/ids :sf/id)
+          sexp '(and sf/crew? (= sf/rank "Captain"))
+          expected (vec (f/evaluate sexp ids))]
+      (expect true (identical? ids (c/ids :sf/id)))
+
+      (testing "repeats are answered from the cache"
+        (expect expected (vec (f/evaluate ctx (f/get-registry) sexp ids)))
+        (expect 0 (:hits (f/cache-stats cache)))
+        (expect expected (vec (f/evaluate ctx (f/get-registry) '(and (= sf/rank "Captain") sf/crew? sf/crew?) ids)))
+        (expect 1 (:hits (f/cache-stats cache))))
+
+      (testing "and prefixes are shared"
+        (let [sexp '(and sf/crew? (= sf/rank "Captain") (not= sf/rank "Ensign"))
+              {:keys [hits]} (f/cache-stats cache)]
+          (expect (vec (f/evaluate sexp ids))
+                  (vec (f/evaluate ctx (f/get-registry) sexp ids)))
+          (expect true (< hits (:hits (f/cache-stats cache))))))
+
+      (testing "other ids miss"
+        (let [{:keys [misses]} (f/cache-stats cache)]
+          (f/evaluate ctx (f/get-registry) sexp (int-array (vec ids)))
+          (expect true (< misses (:misses (f/cache-stats cache)))))))
+
+    (testing "writes invalidate"
+      (let [cache (f/new-cache)
+            ctx {::f/cache cache}
+            ids (test-db-ids)
+            sexp '(= test/int 3456)
+            generation (c/generation)]
+        (expect #{:hello/dude :hello/friend} (eval-sexp ctx (f/get-registry) sexp ids))
+        (c/update! {:db/key :hello/world :test/int 3456})
+        (expect true (< generation (c/generation)))
+        (expect #{:hello/world :hello/dude :hello/friend} (eval-sexp ctx (f/get-registry) sexp ids))))
+
+    (testing "dbs bound to *db* aren't served each other's results"
+      (let [with-scores (fn [scores]
+                          (binding [c/*db* (atom nil)]
+                            (c/create-db!)
+                            (schema/declare-properties! [[:test/id Keyword] [:x/score Integer]])
+                            (c/with-aggr [aggr]
+                              (doseq [[k score] (map vector [:x/s1 :x/s2 :x/s3 :x/s4] scores)]
+                                (c/insert! aggr (cond-> {:db/key k :test/id k}
+                                                  score (assoc :x/score (int score))))))
+                            (c/db)))
+            db1 (with-scores [1 2 3 nil])
+            db2 (with-scores [10 20 30 40])
+            ctx {::f/cache (f/new-cache)}
+            sexp '(or (> x/score 0) (< x/score 100))
+            ids (binding [c/*db* (atom db2)] (c/ids :test/id))]
+        (expect #{:x/s1 :x/s2 :x/s3}
+                (binding [c/*db* (atom db1)] (eval-sexp ctx (f/get-registry) sexp ids)))
+        (expect #{:x/s1 :x/s2 :x/s3 :x/s4}
+                (binding [c/*db* (atom db2)] (eval-sexp ctx (f/get-registry) sexp ids)))
+        (expect #{:x/s1 :x/s2 :x/s3}
+                (binding [c/*db* (atom db1)] (eval-sexp ctx (f/get-registry) sexp ids)))))
+
+    (testing "custom ops aren't cached"
+      (let [counter (volatile! 0)
+            registry (-> (f/new-registry)
+                         (f/register-op! 'search (fn [_ctx _filter-info ids]
+                                                   (vswap! counter inc)
+                                                   ids)))
+            ctx {::f/cache (f/new-cache)}
+            ids (test-db-ids)]
+        (f/evaluate ctx registry '(search "hello") ids)
+        (f/evaluate ctx registry '(search "hello") ids)
+        (expect 2 @counter)))))
+
 (deftest and-or-test
   (binding [f/*enable-index-scan* true]
     (testing "base"
@@ -611,6 +925,46 @@
     (expect 1 @full-moon-counter)))
 
 
+(deftest path-test
+  (expect true (s/valid? ::f/sexp '(> [imdb/directors imdb.person/birth-year] 1970)))
+  (expect false (s/valid? ::f/sexp '(> [imdb.person/birth-year] 1970)))
+
+  (binding [f/*enable-index-scan* true]
+    (let [sf-ids (fn [sexp] (->> (f/evaluate sexp (c/ids :sf/id))
+                                 (map (partial c/value :sf/id))
+                                 set))]
+      (testing "to-many"
+        (expect #{"uss-e-bridge-team" "uss-d-bridge-team"} (sf-ids '(= [sf/-member-ids sf/rank] "Captain")))
+        (expect #{"uss-e-bridge-team" "uss-e-away-team"} (sf-ids '(= [sf/-member-ids sf/android?] true))))
+
+      (testing "to-one"
+        (expect (sf-ids '(= sf/starship-id "uss-e"))
+                (sf-ids '(= [sf/-starship-id sf/registry] "NCC-1701-D"))))
+
+      (testing "multiple hops"
+        (expect #{"uss-e"} (sf-ids '(= [sf/-team-ids sf/-member-ids sf/name] "Data"))))
+
+      (testing "combined"
+        (expect #{"uss-d-med-team" "uss-d-bridge-team"}
+                (sf-ids '(and sf/team? (not (= [sf/-member-ids sf/human?] true)))))))
+
+    (testing "every field but the last must be a relation"
+      (doseq [sexp '[(= [sf/id sf/name] "x")
+                     (= [sf/-team-ids sf/name sf/id] "x")]]
+        (let [ex (try
+                   (f/evaluate sexp (c/ids :sf/id))
+                   nil
+                   (catch ExceptionInfo ex ex))]
+          (expect true (f/error? ex))
+          (expect ::f/field-not-a-relation (f/error-code ex)))))
+
+    (testing "through the inverse"
+      (c/update! {:db/key :test/children :db/inverse-relation (c/key->id :test/parent)})
+      (c/update! {:db/key :test/parent :db/inverse-relation (c/key->id :test/children)})
+      (doseq [ids [(c/ids :db/id) (test-db-ids)]]
+        (expect #{:hello/world} (eval-sexp '(= [test/children test/string] "Dude") ids))
+        (expect #{:hello/there :hello/dude} (eval-sexp '(= [test/parent test/string] "World") ids))))))
+
 (deftest unknown-field-as-predicate-test
   (testing "returns empty, does not throw error"
     (expect #{} (eval-sexp '(or madeup/field) i/+empty+))
@@ -7,7 +7,11 @@
    [conceptual.alpha.filter :as c.filter]
    [conceptual.int-sets :as i]
    [conceptual.alpha.pull :as pull]
-   [expectations.clojure.test :refer [expect]]))
+   [conceptual.schema :as schema]
+   [expectations.clojure.test :refer [expect]])
+  (:import
+   (clojure.lang ExceptionInfo)
+   (conceptual.alpha JsonWriter PullPlan QueryBudget)))
 
 
 (set! *print-namespace-maps* false)
@@ -159,6 +163,13 @@
              :pull/key :foo/bar}
             (f :foo/bar "foo" 'a/b))
 
+    (expect nil (f :foo/bar [:asc "desc"] [:a :b]))
+
+    (expect {::pull/error
+             ::pull/invalid-sort-option-value
+             :pull/key :foo/bar}
+            (f :foo/bar [:asc] [:a :b]))
+
     (expect {::pull/error
              ::pull/invalid-sort-by-option-value,
              :pull/key :foo/bar}
@@ -1320,7 +1331,51 @@
       (expect [worf-id la-forge-id riker-id picard-id]
               (->> [picard-id riker-id worf-id la-forge-id]
                    (#'pull/apply-sort :desc [:sf/rank :sf/name])
-                   vec)))))
+                   vec)))
+
+    (testing "mixed directions, missing values and unknown keys sort as compare does"
+      (let [ids (c/ids :sf/id)
+            by (fn [m] [(:sf/rank m) (:sf/name m) (:sf/age m)])
+            mixed (fn [x y]
+                    (let [[r1 n1 a1] (by x) [r2 n2 a2] (by y)]
+                      (if (zero? (compare r1 r2))
+                        (compare [n2 a1] [n1 a2])
+                        (compare r1 r2))))]
+        (expect (mapv :db/id (sort mixed (map c/seek ids)))
+                (vec (#'pull/apply-sort [:asc :desc :asc] [:sf/rank :sf/name :sf/age] ids)))
+        (expect (mapv :db/id (sort-by by #(compare %2 %1) (map c/seek ids)))
+                (vec (#'pull/apply-sort :desc [:sf/rank :sf/name :sf/age] ids)))
+        (expect (vec ids) (vec (#'pull/apply-sort :asc :unknown/key ids)))))
+
+    (testing "a limit selects the same ids as sorting all of them"
+      (let [ids (c/ids :sf/id)]
+        (doseq [[-sort -sort-by] [[:asc :sf/name] [:desc :sf/rank] [:asc :unknown/key]
+                                  [[:asc :desc] [:sf/rank :sf/name]] [:desc [:sf/age :sf/id]]]
+                limit [0 1 2 3 5 100]]
+          (expect (take limit (#'pull/apply-sort -sort -sort-by ids))
+                  (vec (#'pull/apply-sort -sort -sort-by ids limit))))))))
+
+(deftest sort-page-test
+  (let [crew-ids (c/ids :sf/crew?)
+        pattern (pull/parse {} [:sf/id])
+        all-pages (fn [opts]
+                    (binding [pull/*max-relation-page-size* 1]
+                      (into [] (mapcat #(pull/pull {} pattern crew-ids (assoc opts :page %)))
+                            (range (inc (count crew-ids))))))]
+    (doseq [opts [{:sort-by :sf/name :sort :desc} {:sort-by [:sf/rank :sf/name]}]]
+      (expect (pull/pull {} pattern crew-ids opts)
+              (all-pages opts)))
+    ;; a relation finalizer sees all the ids so the relation is sorted in full
+    (doseq [page [0 1 2]]
+      (let [pattern (pull/parse {:pull/relation? sf-relation?}
+                                [:sf/id
+                                 {[:sf/team-ids {:as :sf/teams :sort :desc :sort-by :sf/name
+                                                 :page page :max-page-size 2}]
+                                  [:sf/id :sf/name]}])]
+        (expect (pull/pull {:pull/relation-value id-resolver
+                            :pull/relation-finalizer :pull/concept}
+                           pattern (->db-id "uss-e"))
+                (pull/pull {:pull/relation-value id-resolver} pattern (->db-id "uss-e")))))))
 
 (deftest sort-test
   (expect {:sf/id "uss-e"
@@ -1407,6 +1462,116 @@
                      (->db-id "uss-e"))))
 
 
+
+(deftest cursor-pagination-test
+  (let [crew-ids (c/ids :sf/crew?)
+        pattern (pull/parse {} [:sf/id :sf/name])
+        opts {:sort-by [:sf/rank :sf/name] :sort [:asc :desc] :max-page-size 5}
+        pages (fn [ids opts]
+                (loop [cursor :start pages []]
+                  (if cursor
+                    (let [page (pull/pull {} pattern ids (assoc opts :cursor cursor))]
+                      (recur (:pull/cursor (meta page)) (conj pages page)))
+                    pages)))
+        error (fn [f]
+                (try (f) (catch Exception ex (::pull/error (ex-data ex)))))]
+    (expect [5 5 3] (map count (pages crew-ids opts)))
+    (expect [10 3] (map count (pages crew-ids (dissoc opts :max-page-size))))
+    (expect (pull/pull {} pattern crew-ids (dissoc opts :max-page-size :page))
+            (apply concat (pages crew-ids opts)))
+    ;; pages but the first are copied out of the cached order
+    (expect (apply concat (pages crew-ids opts))
+            (let [first-page (pull/pull {} pattern crew-ids (assoc opts :cursor :start :cursor-key ::crew))
+                  cursor (:pull/cursor (meta first-page))]
+              (concat first-page
+                      (loop [cursor cursor acc []]
+                        (if cursor
+                          (let [page (pull/pull {} pattern nil (assoc opts :cursor cursor))]
+                            (recur (:pull/cursor (meta page)) (into acc page)))
+                          acc)))))
+    (expect nil (:pull/cursor (meta (pull/pull {} pattern (take 10 crew-ids) {:cursor :start}))))
+    (expect ::pull/invalid-cursor (error #(pull/pull {} pattern crew-ids {:cursor 1})))
+    (expect ::pull/invalid-cursor (error #(pull/pull {} pattern nil {:cursor "no-such-cursor"})))
+    ;; a cursor is invalid once the db changes
+    (let [cursor (:pull/cursor (meta (pull/pull {} pattern crew-ids (assoc opts :cursor :start))))]
+      (expect string? cursor)
+      (c/pack! 1)
+      (expect ::pull/invalid-cursor (error #(pull/pull {} pattern nil (assoc opts :cursor cursor)))))
+    ;; nor are orders and cursors shared by dbs bound to *db*
+    (let [with-names (fn [names]
+                       (binding [c/*db* (atom nil)]
+                         (c/create-db!)
+                         (schema/declare-properties! [[:sf/id String] [:sf/name String]])
+                         (c/with-aggr [aggr]
+                           (doseq [[id name] (map vector ["s1" "s2" "s3"] names)]
+                             (c/insert! aggr {:db/key (keyword "x" id) :sf/id id :sf/name name})))
+                         (c/db)))
+          db1 (with-names ["a" "b" "c"])
+          db2 (with-names ["c" "b" "a"])
+          opts {:sort-by :sf/name :max-page-size 2 :cursor-key ::names}
+          first-page (fn [db]
+                       (binding [c/*db* (atom db)]
+                         (let [page (pull/pull {} (pull/parse {} [:sf/id]) (c/ids :sf/id) (assoc opts :cursor :start))]
+                           [(map :sf/id page) (:pull/cursor (meta page))])))
+          [ids1 cursor] (first-page db1)
+          [ids2] (first-page db2)]
+      (expect ["s1" "s2"] ids1)
+      (expect ["s3" "s2"] ids2)
+      (expect ::pull/invalid-cursor
+              (binding [c/*db* (atom db2)]
+                (error #(pull/pull {} (pull/parse {} [:sf/id]) nil (assoc opts :cursor cursor)))))
+      (expect ["s3"]
+              (binding [c/*db* (atom db1)]
+                (map :sf/id (pull/pull {} (pull/parse {} [:sf/id]) nil (assoc opts :cursor cursor))))))))
+
+
+(defn- ->json
+  [x]
+  (let [out (java.io.StringWriter.)]
+    (.value (JsonWriter. out) x)
+    (str out)))
+
+(defn- write-json
+  [ctx pattern id+ & opts]
+  (let [out (java.io.ByteArrayOutputStream.)]
+    (apply pull/write-json! ctx pattern id+ out opts)
+    (String. (.toByteArray out) "UTF-8")))
+
+(deftest write-json-test
+  (expect "{\"a\":[1,2.5,null,\"x/y\"],\"b\":\"q\\\"\\n\\u0001\",\"c\":{\"d\":true},\"e\":[3,4]}"
+          (->json (array-map :a [1 2.5 ##NaN 'x/y] "b" "q\"\n\u0001" :c {:d true} :e (int-array [3 4]))))
+  (expect "[0.3333333333333333,10,1.5,2.0]" (->json [1/3 10N 1.5M (float 2)]))
+  (let [crew-ids (c/ids :sf/crew?)
+        pattern (pull/parse {:pull/relation? sf-relation?}
+                            [:sf/id :sf/name :sf/rank
+                             {[:sf/team-ids {:as :sf/teams :sort-by :sf/name :max-page-size 2}]
+                              [:sf/id :sf/name]}])
+        ctx {:pull/relation-value id-resolver}]
+    (testing "written straight from the db"
+      (expect (->json (pull/pull {} pattern crew-ids))
+              (write-json {} pattern crew-ids))
+      (expect (->json (pull/pull {} pattern crew-ids :sort-by :sf/name :page 1))
+              (write-json {} pattern crew-ids :sort-by :sf/name :page 1))
+      (expect (->json (pull/pull {} pattern (->db-id "picard")))
+              (write-json {} pattern (->db-id "picard")))
+      (let [pattern (pull/parse {} [:db/id :sf/id])]
+        (expect (str "{\"db/id\":" (->db-id "picard") ",\"sf/id\":\"picard\"}")
+                (write-json {} pattern (->db-id "picard")))
+        (expect (->json (pull/pull {} pattern crew-ids))
+                (write-json {} pattern crew-ids))))
+    (testing "with hooks concepts are pulled one at a time"
+      (expect (->json (pull/pull ctx pattern (c/value :sf/-team-ids (->db-id "uss-e"))))
+              (write-json ctx pattern (c/value :sf/-team-ids (->db-id "uss-e"))))
+      (expect (->json (pull/pull {:pull/concept-finalizer #(assoc (:pull/concept %) :x 1)} pattern crew-ids))
+              (write-json {:pull/concept-finalizer #(assoc (:pull/concept %) :x 1)} pattern crew-ids)))
+    (testing "cursor pagination"
+      (let [out (java.io.StringWriter.)
+            cursor (pull/write-json! {} pattern crew-ids out :cursor :start :sort-by :sf/name :max-page-size 3)]
+        (expect (->json (pull/pull {} pattern crew-ids :sort-by :sf/name :page 0 :max-page-size 3))
+                (str out))
+        (expect (->json (pull/pull {} pattern crew-ids :sort-by :sf/name :page 1 :max-page-size 3))
+                (write-json {} pattern nil :cursor cursor :sort-by :sf/name :max-page-size 3))))))
+
 (defn custom-relation-paginator
   [{:keys [pull/key pull/key-opts]} ids]
   (if (= :sf/team-ids key)
@@ -1478,3 +1643,128 @@
 
     ;; empty result when page exceeds data
     (expect [] (f :page 3 :max-page-size 2))))
+
+
+(deftest budget-test
+  (let [f (fn [budget]
+            (pull/pull {:pull/relation-value id-resolver
+                        :pull/budget budget}
+                       (pull/parse {:pull/relation? sf-relation?}
+                                   [:sf/id {:sf/team-ids [:sf/id]}])
+                       (->db-id "uss-e")))]
+    (testing "within budget"
+      (let [budget (c.filter/new-budget {:max-relations 10 :timeout-ms 60000})]
+        (expect 5 (count (:sf/team-ids (f budget))))
+        (expect 5 (.getUsed budget QueryBudget/RELATIONS))
+        (expect 6 (.getUsed budget QueryBudget/IDS))))
+
+    (testing "relations expanded over budget"
+      (try
+        (f (c.filter/new-budget {:max-relations 2}))
+        (expect false "should have thrown")
+        (catch ExceptionInfo ex
+          (expect ::c.filter/budget-exceeded (c.filter/error-code ex))
+          (expect :relations (:resource (ex-data ex))))))
+
+    (testing "cancelled"
+      (let [budget (c.filter/new-budget {})]
+        (.cancel budget)
+        (try
+          (f budget)
+          (expect false "should have thrown")
+          (catch ExceptionInfo ex
+            (expect ::c.filter/cancelled (c.filter/error-code ex))))))))
+
+
+(deftest batched-relations-test
+  (let [calls (atom [])
+        ctx {:pull/relation-value (fn [{:keys [pull/key db/id] :as m}]
+                                    (swap! calls conj [key id])
+                                    (id-resolver m))}
+        pattern (pull/parse {:pull/relation? sf-relation?}
+                            [:sf/id {:sf/starship-id [:sf/id {:sf/captain-id [:sf/id]}]}])
+        crew-ids (->> (c/ids :sf/starship-id) (filter #(c/value :sf/starship-id %)) int-array)
+        batched (pull/pull ctx pattern crew-ids)
+        starship-calls (->> @calls (filter (comp #{:sf/captain-id} first)) (map second))]
+    (testing "same result as pulling one at a time"
+      (expect (mapv #(pull/pull ctx pattern %) crew-ids) batched))
+
+    (testing "each related concept is pulled once"
+      (expect true (< (count (set starship-calls)) (alength crew-ids)))
+      (expect (count (set starship-calls)) (count starship-calls)))))
+
+
+(deftest compile-test
+  (let [pattern (pull/parse {:pull/relation? sf-relation?}
+                            [:sf/id [:sf/name {:as :name}] :unknown/key {:sf/team-ids [:sf/id]}])
+        compiled (pull/compile pattern)
+        ^PullPlan plan (::pull/plan compiled)]
+    (expect 2 (.size plan))
+    (expect true (identical? compiled (pull/compile compiled)))
+    (expect true (some? (get-in compiled [:pull/relations 0 :pull/pattern ::pull/plan])))
+    (expect {:db/id (->db-id "uss-e") :sf/id "uss-e" :name "USS Enterprise"}
+            (.project plan (c/db) (->db-id "uss-e")))
+    (expect (pull/pull {:pull/relation-value id-resolver} pattern (->db-id "uss-e"))
+            (pull/pull {:pull/relation-value id-resolver} compiled (->db-id "uss-e")))))
+(deftest parallel-pull-test
+  (let [ids (take 5000 (cycle (c/ids :sf/team?)))
+        pattern (pull/parse {:pull/relation? sf-relation?}
+                            [:sf/id :sf/name {[:sf/member-ids {:sort-by :sf/name :max-page-size 3}] [:sf/id]}])
+        finalized (atom 0)
+        ctx {:pull/relation-value id-resolver
+             :pull/concept-finalizer (fn [{c :pull/concept}]
+                                       (swap! finalized inc)
+                                       (assoc c :finalized? true))}
+        expected (pull/pull ctx pattern ids)]
+    (expect 5000 (count expected))
+    (expect (every? :finalized? (filter map? (tree-seq coll? seq expected))))
+    (reset! finalized 0)
+    (expect expected (pull/pull (assoc ctx :pull/parallelism 4) pattern ids))
+    ;; each concept is finalized at least once, related ones once per chunk
+    (expect (<= 5000 @finalized))
+    (let [executor (java.util.concurrent.Executors/newFixedThreadPool 2)]
+      (try
+        (expect expected (pull/pull (assoc ctx :pull/parallelism 2 :pull/executor executor) pattern ids))
+        (finally
+          (.shutdown executor))))
+    (testing "related concepts aren't pulled in parallel"
+      (let [seen (atom #{})
+            ctx (assoc ctx :pull/relation-value (fn [{:keys [pull/ctx] :as rel-opts}]
+                                                  (swap! seen conj (select-keys ctx [:pull/parallelism :pull/executor]))
+                                                  (id-resolver rel-opts)))]
+        (expect expected (pull/pull (assoc ctx :pull/parallelism 4) pattern ids))
+        (expect #{{}} @seen)))
+    (testing "errors of a chunk are rethrown as is"
+      (try
+        (pull/pull (assoc ctx :pull/parallelism 4 :pull/budget (c.filter/new-budget {:max-ids 3000}))
+                   pattern ids)
+        (expect false "should have thrown")
+        (catch ExceptionInfo ex
+          (expect ::c.filter/budget-exceeded (c.filter/error-code ex)))))))
+
+(deftest memo-test
+  (let [pulled (atom 0)
+        pattern (pull/parse {:pull/relation? sf-relation?}
+                            [:sf/id {[:sf/member-ids {:as :sf/members}]
+                                     [:sf/id {[:sf/team-ids {:as :sf/teams}] [:sf/id :sf/name]}]}])
+        team-ids (c/value :sf/-team-ids (->db-id "uss-e"))
+        finalizer (fn [{c :pull/concept}]
+                    (swap! pulled inc)
+                    c)
+        ;; with hooks each team is pulled on its own, sharing the memo of the request
+        f (fn [ctx]
+            (reset! pulled 0)
+            [(write-json (merge {:pull/relation-value id-resolver
+                                 :pull/concept-finalizer finalizer}
+                                ctx)
+                         pattern team-ids)
+             @pulled])
+        [expected n] (f {:pull/memo-size 0})
+        [memoized n'] (f {})
+        [dependent n''] (f {:pull/concept-finalizer (with-meta finalizer {:pull/context-dependent? true})})]
+    (expect (->json (pull/pull {:pull/relation-value id-resolver} pattern team-ids)) expected)
+    (expect expected memoized)
+    (expect expected dependent)
+    ;; crew in several teams, and their teams, are built once
+    (expect (< n' n))
+    (expect n n'')))
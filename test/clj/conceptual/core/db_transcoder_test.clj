@@ -143,3 +143,25 @@
 
       ;; cleanup
       (io/delete-file pickle-path))))
+
+
+(deftest packed-pickle-test
+  (testing "packed values are pickled decoded"
+    (let [pickle-path "temp/test_pickle.sz"]
+      (io/make-parents pickle-path)
+      (c/create-db!)
+      (declare-test-schema!)
+      (c/with-aggr [aggr]
+        (doseq [data +test-data+]
+          (c/insert! aggr data)))
+      (c/compact!)
+      (let [tagged (vec (c/ids :test/tag?))]
+        (c/pack! 1)
+        (expect conceptual.util.PackedIntSet (class (c/stored-ids :test/tag?)))
+
+        (c/pickle! :filename pickle-path)
+        (c/load-pickle! :filename pickle-path)
+        (expect int/1 (class (c/stored-ids :test/tag?)))
+        (expect tagged (vec (c/ids :test/tag?))))
+
+      (io/delete-file pickle-path))))
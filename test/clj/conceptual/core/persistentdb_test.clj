@@ -1,9 +1,16 @@
 (ns conceptual.core.persistentdb-test
   (:require
+   [conceptual.alpha.filter :as f]
    [conceptual.core :as c]
+   [conceptual.faceting :as faceting]
+   [conceptual.schema :as schema]
    [conceptual.test.core :as test.core]
    [expectations.clojure.test :refer [expect]]
-   [clojure.test :refer [deftest use-fixtures]]))
+   [clojure.test :refer [deftest use-fixtures]])
+  (:import
+   (clojure.lang ExceptionInfo)
+   (conceptual.alpha QueryBudget SortKernel)
+   (conceptual.core IndexAggregator WritableDB)))
 
 
 (use-fixtures :each test.core/with-persistentdb)
@@ -40,3 +47,116 @@
   (expect  #{(c/value :db/id :hello/there)
              (c/value :db/id :hello/dude)}
            (into #{} (c/value :test/children :hello/world))))
+
+
+(defn- sort-ids
+  [ids k desc? ranks]
+  (vec (SortKernel/sort (c/db) (int-array ids) (int-array [(c/key->id k)]) (boolean-array [desc?])
+                        ^int/2 (into-array int/1 [ranks]))))
+
+(deftest sortable-test
+  (schema/declare-sortable! :sf/name)
+  (let [ids (c/ids :sf/crew?)
+        kid (c/key->id :sf/name)
+        by-name (fn [desc?]
+                  (mapv :db/id (cond-> (sort-by :sf/name (map c/seek ids))
+                                 desc? reverse)))
+        ranks #(c/value :db/ranks :sf/name)]
+    (expect true (c/value :db/sortable? :sf/name))
+    (expect (vec (c/rank-index (c/db) kid)) (vec (ranks)))
+    (expect (by-name false) (sort-ids ids :sf/name false (ranks)))
+    (expect (sort-ids ids :sf/name true nil) (sort-ids ids :sf/name true (ranks)))
+    (expect (take 1 (sort-ids ids :sf/name true nil))
+            (vec (SortKernel/sort (c/db) (int-array ids) (int-array [kid]) (boolean-array [true])
+                                  ^int/2 (into-array int/1 [(ranks)]) 1)))
+    ;; writes through an aggregator keep the ranks up to date
+    (c/with-aggr [aggr]
+      (c/update! aggr {:db/id (first (by-name false)) :sf/name "Zz"}))
+    (expect (by-name false) (sort-ids ids :sf/name false (ranks)))
+    (expect (last (by-name false)) (last (sort-ids ids :sf/name false (ranks))))
+    (c/with-aggr [aggr]
+      (c/replace! aggr (-> (c/->persistent-map (c/seek (second (by-name false))))
+                           (assoc :sf/name "A"))))
+    (expect (by-name false) (sort-ids ids :sf/name false (ranks)))
+    ;; as are concepts inserted
+    (c/with-aggr [aggr]
+      (c/insert! aggr {:sf/id "aa" :sf/name "0" :sf/crew? true}))
+    (let [ids (c/ids :sf/crew?)]
+      (expect (c/lookup-id :sf/id "aa") (first (sort-ids ids :sf/name false (ranks)))))))
+
+(deftest aggregator-changes-test
+  (let [aggr (IndexAggregator.)
+        id (c/lookup-id :sf/id "picard")]
+    (c/replace! aggr (assoc (c/->persistent-map (c/seek id)) :sf/name "Jean-Luc"))
+    ;; only changed values so no key's :db/ids needs updating
+    (expect nil (.keys aggr))
+    (expect true (every? (set (.changedKeys aggr)) (c/keys->ids [:sf/name :sf/id])))
+    (swap! c/*db* #(.update ^WritableDB % aggr (int id) (int (c/key->id :sf/rank)) "Admiral"))
+    (expect nil (.keys aggr))
+    (expect true (contains? (set (.changedKeys aggr)) (c/key->id :sf/rank)))))
+
+(defn- ->freqs [kfps]
+  (mapv (fn [^conceptual.core.KeyFrequencyPair kfp]
+          [(.key kfp) (.frequency kfp)]) kfps))
+
+(deftest keys-by-frequency-test
+  (let [crew-ids (c/ids :sf/crew?)
+        skip-keys (c/keys->ids [:sf/crew? :sf/name])
+        freqs (->freqs (faceting/keys-by-frequency crew-ids))
+        skipped (->freqs (faceting/keys-by-frequency-with-skip skip-keys crew-ids))]
+    (expect (count crew-ids) (get (into {} freqs) (c/key->id :sf/crew?)))
+    (expect 7 (get (into {} freqs) (c/key->id :sf/human?)))
+    (expect (remove (comp (set skip-keys) first) freqs) skipped)
+    (expect (apply >= (map second freqs)))
+    ;; same answers once compacted to an RDB
+    (c/compact!)
+    (expect freqs (->freqs (faceting/keys-by-frequency crew-ids)))
+    (expect skipped (->freqs (faceting/keys-by-frequency-with-skip skip-keys crew-ids)))))
+
+(deftest relations-by-frequency-test
+  (schema/declare-property! :x/score Integer)
+  (c/with-aggr [aggr]
+    (doseq [score [3 -1 7]]
+      (c/insert! aggr {:db/key (keyword "x" (str "s" score)) :x/score (int score)})))
+  (let [crew-ids (c/ids :sf/crew?)
+        score-ids (c/ids :x/score)
+        scores (->freqs (faceting/relations-by-frequency (c/key->id :x/score) score-ids))
+        team-ids (c/ids :sf/team?)
+        uss-e (c/lookup-id :sf/id "uss-e")
+        worf (c/lookup-id :sf/id "worf")
+        to-one (->freqs (faceting/relations-by-frequency (c/key->id :sf/-starship-id) crew-ids))
+        to-many (->freqs (faceting/relations-by-frequency (c/key->id :sf/-member-ids) team-ids))
+        skipped (->freqs (faceting/relations-by-frequency-with-skip
+                          (c/key->id :sf/-member-ids) (int-array [worf]) team-ids))]
+    (expect [uss-e 9] (first to-one))
+    (expect 2 (count to-one))
+    (expect [worf 3] (first to-many))
+    (expect nil (some (comp #{worf} first) skipped))
+    (expect (dec (count to-many)) (count skipped))
+    ;; keys other than relations have no related ids
+    (expect [] scores)
+    (c/compact!)
+    (expect scores (->freqs (faceting/relations-by-frequency (c/key->id :x/score) score-ids)))
+    (expect to-one (->freqs (faceting/relations-by-frequency (c/key->id :sf/-starship-id) crew-ids)))
+    (expect to-many (->freqs (faceting/relations-by-frequency (c/key->id :sf/-member-ids) team-ids)))))
+
+(deftest faceting-budget-test
+  (let [db @c/*db*
+        crew-ids (c/ids :sf/crew?)
+        relation-key (c/key->id :sf/-starship-id)
+        freqs (->freqs (faceting/keys-by-frequency crew-ids))]
+    (let [budget (f/new-budget {:max-ids 100})]
+      (expect freqs (->freqs (faceting/keys-by-frequency db crew-ids {:budget budget})))
+      (expect (count crew-ids) (.getUsed budget QueryBudget/IDS))
+      (expect false (.isExceeded budget)))
+
+    (let [budget (f/new-budget {:max-ids 0})]
+      (expect [] (->freqs (faceting/relations-by-frequency db relation-key crew-ids
+                                                           {:budget budget :on-exceeded :partial})))
+      (expect true (.isExceeded budget)))
+
+    (try
+      (faceting/keys-by-frequency-with-skip db (int-array []) crew-ids {:budget (f/new-budget {:max-ids 0})})
+      (expect false "should have thrown")
+      (catch ExceptionInfo ex
+        (expect ::f/budget-exceeded (f/error-code ex))))))
@@ -1,9 +1,12 @@
 (ns conceptual.core.rdb-test
   (:require
    [conceptual.core :as c]
+   [conceptual.alpha.filter :as f]
+   [conceptual.int-sets :as i]
+   [conceptual.schema :as schema]
    [conceptual.test.core :as test.core]
    [expectations.clojure.test :refer [expect]]
-   [clojure.test :refer [deftest use-fixtures]]))
+   [clojure.test :refer [deftest testing use-fixtures]]))
 
 
 (use-fixtures :each test.core/with-rdb)
@@ -81,3 +84,63 @@
   ;; negative
   (expect false (= (c/lookup :sf/id "picard")
                    (c/lookup :sf/id "riker"))))
+
+
+(deftest sortable-test
+  (schema/declare-sortable! :sf/name)
+  (let [ids (c/ids :sf/crew?)
+        ranks #(vec (c/value :db/ranks :sf/name))
+        by-name #(mapv :db/id (sort-by :sf/name (map c/seek ids)))]
+    (expect (vec (c/rank-index (c/db) (c/key->id :sf/name))) (ranks))
+    (c/with-aggr [aggr]
+      (c/update! aggr {:db/id (first (by-name)) :sf/name "Zz"}))
+    (expect (vec (c/rank-index (c/db) (c/key->id :sf/name))) (ranks))
+    (c/with-aggr [aggr]
+      (c/replace! aggr (-> (c/->persistent-map (c/seek (last (by-name))))
+                           (assoc :sf/name "A"))))
+    (expect (vec (c/rank-index (c/db) (c/key->id :sf/name))) (ranks))
+    (expect 1 (get (ranks) (first (by-name))))))
+
+(deftest dbmap-reduce-test
+  (let [picard (c/lookup :sf/id "picard")
+        expected (into {} (map (juxt key val)) (seq picard))]
+    (expect (count picard) (count expected))
+    (expect expected (c/->persistent-map picard))
+    (expect expected (reduce-kv assoc {} picard))
+    (expect expected (into {} picard))
+    (expect (set (keys expected)) (set (.keySet picard)))
+    (expect true (.contains (.keySet picard) :sf/name))
+    ;; stops early when reduced
+    (expect [:db/id] (reduce-kv (fn [acc k _] (reduced (conj acc k))) [] picard))
+    (expect 1 (count (reduce (fn [acc e] (reduced (conj acc e))) [] picard)))
+    (testing "projected maps reduce over their keys only"
+      (let [m (.projectMap picard (c/keys->ids [:sf/id :sf/name :no/such-key]))]
+        (expect {:sf/id "picard" :sf/name "Jean-Luc Picard"} (reduce-kv assoc {} m))
+        (expect {:sf/id "picard" :sf/name "Jean-Luc Picard"} (.asPersistentMap m))
+        (expect #{:sf/id :sf/name} (set (.keySet m)))))))
+
+(defn- concepts
+  [ids]
+  (into {}
+        (map (fn [id]
+               [id (update-vals (c/->persistent-map (c/seek id))
+                                #(if (i/int-array? %) (vec %) %))]))
+        ids))
+
+(deftest pack-test
+  (let [before (concepts (c/ids :sf/id))
+        crew (vec (c/ids :sf/crew?))
+        expr '(and sf/crew? (not sf/android?))
+        evaluated (vec (f/evaluate expr (c/ids :sf/id)))]
+    (c/pack! 1)
+    (expect true (i/packed? (c/stored-ids :sf/crew?)))
+    (expect crew (vec (c/ids :sf/crew?)))
+    (expect int/1 (class (c/value :db/ids :sf/crew?)))
+    (expect before (concepts (c/ids :sf/id)))
+    (expect evaluated (vec (f/evaluate expr (c/ids :sf/id))))
+    (testing "writes keep working"
+      (c/with-aggr [aggr]
+        (c/update! aggr {:db/key :hello/world
+                         :test/string "World!"}))
+      (expect "World!" (c/value :test/string :hello/world))
+      (expect crew (vec (c/ids :sf/crew?))))))
@@ -1,8 +1,11 @@
 (ns conceptual.int-sets-test
   (:require
    [conceptual.int-sets :as i]
+   [clojure.set :as set]
    [clojure.test :refer [deftest testing]]
-   [expectations.clojure.test :refer [expect]]))
+   [expectations.clojure.test :refer [expect]])
+  (:import
+   (conceptual.util DenseIntSet IntCursor IntegerSets IntSet PackedIntSet SortedIntSet)))
 
 
 (deftest =-test
@@ -199,6 +202,238 @@
     (expect [6 7 8 9 3] (vec (i/difference! (int-array [6 7 8 9 3]) (int-array [2 3 5]))))))
 
 
+;; large enough to take the vector path when `i/vectorized?`
+(defn- random-set
+  [^java.util.Random rnd n universe]
+  (i/set (repeatedly n #(.nextInt rnd universe))))
+
+(deftest large-set-ops-test
+  (let [rnd (java.util.Random. 42)]
+    (doseq [[n m universe] [[1000 1000 5000]
+                            [50 10000 20000]
+                            [10000 50 20000]
+                            [3000 3000 1000000]]]
+      (let [a (random-set rnd n universe)
+            b (random-set rnd m universe)
+            sa (set a)
+            sb (set b)]
+        (expect (sort (set/intersection sa sb)) (seq (i/intersection a b)))
+        (expect (count (set/intersection sa sb)) (i/intersection-count a b))
+        (expect (sort (set/union sa sb)) (seq (i/union a b)))
+        (expect (sort (set/difference sa sb)) (seq (i/difference a b)))
+        (expect (sort (set/difference sa sb)) (seq (i/difference! a b)))))))
+
+(deftest n-way-intersection-test
+  (let [rnd (java.util.Random. 7)]
+    (doseq [sizes [[20 5000 8000 3000]
+                   [500 600 700]
+                   [1 10000 10000 10000 10000]]]
+      (let [sets (mapv #(random-set rnd % 10000) sizes)]
+        (expect (vec (sort (apply set/intersection (map set sets))))
+                (vec (apply i/intersection sets))))))
+  (expect [] (vec (i/intersection (i/set [1 2]) (i/set []) (i/set [1 2]))))
+  (expect [] (vec (i/intersection (i/set [1 2]) nil (i/set [1 2]))))
+  (expect [2] (vec (i/intersection (i/set [1 2 3]) (i/set [2]) (i/set [0 2 4])))))
+
+(deftest gallop-test
+  (let [xs (int-array (range 0 1000 2))]
+    (expect 0 (IntegerSets/gallop xs 0 -5))
+    (expect 0 (IntegerSets/gallop xs 0 0))
+    (expect 1 (IntegerSets/gallop xs 0 1))
+    (expect 250 (IntegerSets/gallop xs 100 500))
+    (expect 100 (IntegerSets/gallop xs 100 3))
+    (expect 499 (IntegerSets/gallop xs 0 998))
+    (expect 500 (IntegerSets/gallop xs 0 999))
+    (expect 500 (IntegerSets/gallop xs 500 0))))
+
+(deftest k-way-union-test
+  (let [rnd (java.util.Random. 11)]
+    (testing "dense inputs use the bitmap sweep, sparse ones the heap merge"
+      (doseq [[k n universe] [[12 200 1000]
+                              [12 200 100000000]
+                              [3 5000 20000]]]
+        (let [sets (vec (repeatedly k #(random-set rnd n universe)))]
+          (expect (vec (sort (apply set/union (map set sets))))
+                  (vec (apply i/union sets)))
+          (expect (vec (sort (apply set/union (map set sets))))
+                  (vec (IntegerSets/getUnion ^"[[I" (into-array int/1 sets)))))))
+
+    (testing "unsorted inputs with duplicates"
+      (expect [-3 1 2 5 100000000]
+              (vec (i/union (int-array [5 1 5]) (int-array [100000000 -3]) (int-array [2 1]))))
+      (expect [1 2 3 5]
+              (vec (i/union (int-array [5 1 5]) (int-array [3 2]) nil (int-array [])))))
+
+    (testing "negative ids"
+      (expect [-10 -5 0 5] (vec (i/union (i/set [-5 5]) (i/set [-10 0]) (i/set [0 5])))))))
+
+(deftest int-set-test
+  (testing "representation is chosen by density"
+    (expect DenseIntSet (i/->int-set (int-array (range 0 1000 3))))
+    (expect SortedIntSet (i/->int-set (int-array (range 0 100000 100))))
+    (expect SortedIntSet (i/->int-set (int-array [-2 -1 0 1])))
+    (expect SortedIntSet (i/->int-set nil))
+    (expect [1 2 3] (vec (i/->int-set [3 1 2 1]))))
+
+  (testing "mixed representations"
+    (let [rnd (java.util.Random. 13)
+          dense-a (random-set rnd 3000 10000)
+          dense-b (random-set rnd 2000 10000)
+          sparse (random-set rnd 100 10000)]
+      (doseq [a [dense-a sparse]
+              b [dense-b sparse]
+              :let [sa (i/->int-set a)
+                    sb (i/->int-set b)]]
+        (expect IntSet (i/intersection* sa b))
+        (expect IntSet (i/difference* a sb))
+        (expect int/1 (class (i/intersection* a b)))
+        (expect int/1 (class (i/difference* a b)))
+        (expect (vec (i/intersection a b)) (vec (i/intersection* sa sb)))
+        (expect (vec (i/intersection a b)) (vec (i/intersection* sa b)))
+        (expect (vec (i/union a b)) (vec (i/union* sa sb)))
+        (expect (vec (i/union a b)) (vec (i/union* a sb)))
+        (expect (vec (i/difference a b)) (vec (i/difference* sa sb)))
+        (expect (vec (i/difference a b)) (vec (i/difference* sa b)))
+        (expect (vec (i/intersection a b dense-a)) (vec (i/intersection* sa b dense-a))))))
+
+  (testing "union* keeps dense unions as bitsets"
+    (expect DenseIntSet (i/union* (int-array (range 0 100 2)) (int-array (range 1 100 2))))
+    (expect SortedIntSet (i/union* (int-array [1 100000]) (int-array [5])))
+    (expect (vec (range 100)) (vec (i/union* (int-array (range 0 100 2)) (int-array (range 1 100 2)))))
+    (expect [] (vec (i/union* nil (int-array []))))
+    (expect [1 2 3] (vec (i/union* (int-array [3]) (i/->int-set (int-array [2])) (int-array [1]))))
+    (expect [1 2] (vec (i/union* (int-array [1 2]))))
+    (expect DenseIntSet (i/union-all* [(int-array (range 0 100 2)) (int-array (range 1 100 2))]))
+    (expect [] (vec (i/union-all* []))))
+
+  (testing "predicates accept int sets"
+    (let [s (i/->int-set (int-array (range 10)))]
+      (expect true (i/member? 3 s))
+      (expect false (i/member? 30 s))
+      (expect true (i/contains? s 9))
+      (expect 4 (i/index-of 4 s))
+      (expect true (i/= s (int-array (range 10))))
+      (expect true (i/subset? (i/set [1 2]) s))
+      (expect false (i/empty? s))
+      (expect true (i/empty? (i/->int-set [])))
+      (expect int/1 (class (i/set s)))
+      (expect (vec (range 10)) (vec (i/->int-array s)))
+      (expect (i/->int-set [1 2 3]) (DenseIntSet/of (int-array [1 2 3]))))))
+
+(defn- cursors
+  ^"[Lconceptual.util.IntCursor;" [& xs]
+  (into-array IntCursor xs))
+
+(deftest intersection-count-test
+  (expect 0 (i/intersection-count nil nil))
+  (expect 0 (i/intersection-count (i/set [1 2]) nil))
+  (expect 0 (i/intersection-count (i/set [1 2]) (i/set [3 4])))
+  (expect 2 (i/intersection-count (i/set [1 2 3]) (i/set [2 3 4])))
+  (expect 1 (i/intersection-count (i/set [1 2 3]) (i/set [2 3 4]) (i/set [3 4 5])))
+  (expect 0 (i/intersection-count (i/set [1 2 3]) nil (i/set [3 4 5])))
+  (let [rnd (java.util.Random. 42)]
+    (doseq [[n universe] [[10 100] [1000 5000] [3000 4000]]]
+      (let [a (random-set rnd n universe)
+            b (random-set rnd (* 2 n) universe)
+            c (random-set rnd (quot n 10) universe)]
+        (expect (alength (i/intersection a b c)) (i/intersection-count a b c))
+        (expect (alength (i/intersection a b)) (i/intersection-count (IntSet/of a) (IntSet/of b)))
+        (expect (alength (i/intersection a c)) (i/intersection-count (IntSet/of a) c))
+        (expect (alength (i/intersection a b c)) (i/intersection-count (IntSet/of a) b c))
+        (expect (.count (IntCursor/and (cursors (i/cursor a) (i/cursor b))))
+                (i/intersection-count a b))))))
+
+(deftest difference-count-test
+  (expect 0 (i/difference-count nil nil))
+  (expect 2 (i/difference-count (i/set [1 2]) nil))
+  (expect 1 (i/difference-count (i/set [1 2 3]) (i/set [2 3 4])))
+  (let [rnd (java.util.Random. 42)]
+    (doseq [[n universe] [[10 100] [1000 5000] [3000 4000]]]
+      (let [a (random-set rnd n universe)
+            b (random-set rnd (* 2 n) universe)]
+        (expect (alength (i/difference a b)) (i/difference-count a b))
+        (expect (alength (i/difference b a)) (i/difference-count (IntSet/of b) (IntSet/of a)))
+        (expect (alength (i/difference a b)) (i/difference-count (IntSet/of a) b))))))
+
+(deftest cursor-test
+  (let [c (IntCursor/of (i/set [2 4 6 8]))]
+    (expect 4 (.advance c 3))
+    (expect 4 (.advance c 1))
+    (expect 6 (.next c))
+    (expect IntCursor/EXHAUSTED (.advance c 9))
+    (expect IntCursor/EXHAUSTED (.next c)))
+  (let [c (i/cursor (IntSet/of (i/set (range 0 200 3))))]
+    (expect 0 (.next c))
+    (expect 102 (.advance c 100))
+    (expect 105 (.next c))
+    (expect IntCursor/EXHAUSTED (.advance c 200)))
+  (expect [] (vec (.toIntArray (i/cursor nil))))
+  (expect [1 2 3] (vec (.toIntArray (i/cursor (i/set [1 2 3])))))
+  (expect 3 (.count (i/cursor (i/set [1 2 3])))))
+
+(deftest cursor-set-ops-test
+  (let [rnd (java.util.Random. 42)]
+    (doseq [[n universe] [[10 100] [1000 5000] [3000 4000]]]
+      (let [a (random-set rnd n universe)
+            b (random-set rnd (* 2 n) universe)
+            c (random-set rnd (quot n 10) universe)
+            sa (set a) sb (set b) sc (set c)
+            ;; dense inputs exercise the bitset cursor
+            cursor #(i/cursor (IntSet/of %))]
+        (expect (sort (set/intersection sa sb sc))
+                (vec (.toIntArray (IntCursor/and (cursors (cursor a) (cursor b) (cursor c))))))
+        (expect (sort (set/union sa sb sc))
+                (vec (.toIntArray (IntCursor/or (cursors (cursor a) (cursor b) (cursor c))))))
+        (expect (sort (set/difference sa sb))
+                (vec (.toIntArray (IntCursor/andNot (cursor a) (cursor b)))))
+        (testing "nested"
+          (expect (sort (set/difference (set/intersection sa (set/union sb sc)) sc))
+                  (vec (.toIntArray
+                        (IntCursor/andNot
+                         (IntCursor/and (cursors (cursor a) (IntCursor/or (cursors (cursor b) (cursor c)))))
+                         (cursor c))))))
+        (testing "advance through composites"
+          (let [expected (sort (set/intersection sa (set/union sb sc)))
+                target (quot universe 2)
+                c (IntCursor/and (cursors (cursor a) (IntCursor/or (cursors (cursor b) (cursor c)))))]
+            (expect (or (first (drop-while #(< % target) expected)) IntCursor/EXHAUSTED)
+                    (.advance c target))))))))
+
+(deftest packed-set-test
+  (let [rnd (java.util.Random. 42)
+        clustered (i/set (concat (range 1000 3000) (range 50000 50100) [(dec Integer/MAX_VALUE)]))
+        sets [[] [7] [-5 -1 0 3] (range 0 500) clustered
+              (random-set rnd 1000 5000) (random-set rnd 100 Integer/MAX_VALUE)]]
+    (doseq [xs sets]
+      (let [xs (i/set xs)
+            p (i/pack xs)]
+        (expect (vec xs) (vec (i/->int-array p)))
+        (expect (alength xs) (count p))
+        (expect (vec xs) (into [] p))
+        (expect (vec xs) (vec (.toIntArray (i/cursor p))))
+        (expect true (every? #(.contains p (int %)) xs))
+        (expect false (.contains p (int 4999999)))))
+    (testing "runs and clusters compress"
+      (expect true (< (.sizeInBytes (i/pack clustered)) (quot (* 4 (alength clustered)) 8))))
+    (testing "only strictly ascending arrays"
+      (expect false (PackedIntSet/isPackable (int-array [1 1 2])))
+      (expect IllegalArgumentException (try (i/pack (int-array [3 2])) (catch Exception e (class e)))))
+    (testing "cursor advance skips blocks"
+      (let [xs (random-set rnd 2000 100000)
+            c (i/cursor (i/pack xs))]
+        (doseq [target [-1 10 5000 5001 70000 99999 100000]]
+          (expect (or (first (drop-while #(< % target) xs)) IntCursor/EXHAUSTED)
+                  (.advance c target)))))
+    (testing "intersection over compressed blocks"
+      (doseq [[n m universe] [[1000 1000 5000] [100 5000 100000] [3000 200 1000000]]]
+        (let [a (random-set rnd n universe)
+              b (random-set rnd m universe)]
+          (expect (vec (i/intersection a b)) (vec (i/packed-intersection (i/pack a) (i/pack b))))
+          (expect (vec (i/intersection a b)) (vec (i/packed-intersection (i/pack a) b)))
+          (expect (vec (i/intersection a b)) (vec (i/packed-intersection a (i/pack b))))
+          (expect (alength (i/intersection a b))
+                  (PackedIntSet/intersectionCount (i/pack a) (i/pack b))))))))
+
 (deftest subset?-test
   (expect true (i/subset? (int-array []) (int-array [])))
   (expect true (i/subset? (int-array [1]) (int-array [1 2])))